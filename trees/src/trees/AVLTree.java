@@ -2,15 +2,43 @@ package trees;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 
 public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearchTree<K,V> {
+	private final BalancePolicy policy;
 	private Node<K,V> root;
 	private int elements;
 	private int height;
+	// counts structural changes, so cursors can tell when they are stale
+	private int modifications;
+	
+	// optional filter answering contains/find misses without a tree walk
+	private CountingBloomFilter<K> filter;
+	private int filterCapacity;
+	private double filterFalsePositiveRate;
+	
+	// optional free list recycling the nodes of removed entries
+	private NodePool<Node<K,V>> pool;
+	
+	// optional size estimates of keys and values, adjusted by every update
+	private SizeEstimator<? super K> keyEstimator;
+	private SizeEstimator<? super V> valueEstimator;
+	private long keyBytes;
+	private long valueBytes;
+	// data subclasses keep beside the entries, see extraBytes()
+	private long extraBytes;
+	
+	// memory budget thresholds, sorted by size; none changes state while the
+	// estimated size stays within [thresholdFloor, thresholdCeiling)
+	private List<MemoryThreshold> thresholds;
+	private long thresholdFloor;
+	private long thresholdCeiling;
 	
 	// balance factor constants
 	private static final int L_HEAVY = 2;
@@ -21,28 +49,56 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 	// max char count for each node used by print()
 	private static final int CHARS_PER_NODE = 4;
 	
+	// marks the cached tree height as stale for policies where rank != height
+	private static final int UNKNOWN_HEIGHT = -2;
+	
+	// smallest number of keys the membership filter is sized for
+	private static final int MIN_FILTER_CAPACITY = 64;
+	
+	// shallow sizes: a node's key, value, links, rank and color, and a pool's
+	// array, size and statistics fields
+	private static final int NODE_BYTES = (int) MemoryFootprint.align(
+			MemoryFootprint.OBJECT_HEADER + 4 * MemoryFootprint.REFERENCE + 4 + 1);
+	private static final int POOL_BYTES = (int) MemoryFootprint.align(
+			MemoryFootprint.OBJECT_HEADER + MemoryFootprint.REFERENCE + 2 * 4 + 4 * 8);
+	
 	public AVLTree() {
+		this(BalancePolicy.AVL);
+	}
+	
+	public AVLTree(BalancePolicy policy) {
+		this.policy = policy;
 		root = null;
 		elements = 0;
 		height = -1;
+		modifications = 0;
 	}
 	
 	// copy constructor
 	public AVLTree(final AVLTree<K,V> other) {
+		policy = other.policy;
 		root = copy(other.root);
 		elements = other.elements;
 		height = other.height;
+		if (other.filter != null) {
+			enableMembershipFilter(other.filterFalsePositiveRate);
+		}
+		if (other.pool != null) {
+			enableNodePool(other.pool.capacity());
+		}
+		keyEstimator = other.keyEstimator;
+		valueEstimator = other.valueEstimator;
+		keyBytes = other.keyBytes;
+		valueBytes = other.valueBytes;
+		extraBytes = other.extraBytes;
 	}
 	
 	public V find(K key) {
-		if (isEmpty()) {
-			System.err.println("Error: tree is empty.");
-			return null;
-		} else if (!contains(key)) {
-			System.err.println("Error: tree does not contain key " + key + ".");
+		if (filter != null && !filter.mightContain(key)) {
 			return null;
 		}
-		return find(root, key).value;
+		Node<K,V> node = findNode(key);
+		return node == null ? null : node.value;
 	}
 	
 	public void insert(K key, V value) {
@@ -51,8 +107,8 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 			return;
 		}
 		root = insert(root, key, value);
-		elements++;
-		height = height(root);
+		inserted(key, value);
+		checkMemory();
 	}
 	
 	public V remove(K key) {
@@ -65,10 +121,33 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		}
 		
 		// retrieve the old value before removing (O(logn) + O(logn))
-		V oldVal = find(root, key).value;
-		root = remove(root, key);
-		height = height(root);
+		Node<K,V> removed = find(root, key);
+		V oldVal = removed.value;
+		if (policy == BalancePolicy.RED_BLACK) {
+			if (!isRed(root.left) && !isRed(root.right)) {
+				root.red = true;
+			}
+			root = removeRB(root, key);
+			if (root != null) {
+				root.red = false;
+			}
+		} else {
+			root = remove(root, key);
+		}
+		updateHeight();
 		elements--;
+		modifications++;
+		account(removed, -1);
+		// removal relinks other nodes around this one, so it is detached now
+		release(removed);
+		
+		if (filter != null) {
+			filter.remove(key);
+			if (filter.isSaturated()) {
+				rebuildFilter();
+			}
+		}
+		checkMemory();
 		return oldVal;
 	}
 	
@@ -80,17 +159,33 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 			System.err.println("Error: tree does not contain key " + key + ".");
 			return;
 		}
-		modifyValue(root, key, newValue);
+		V oldVal = modifyValue(root, key, newValue);
+		accountValue(oldVal, newValue);
+		checkMemory();
 	}
 	
 	public boolean contains(K key) {
+		if (filter != null && !filter.mightContain(key)) {
+			return false;
+		}
 		return contains(root, key);
 	}
 	
 	public void clear() {
+		if (pool != null) {
+			releaseAll(root);
+		}
 		root = null;
 		elements = 0;
 		height = -1;
+		modifications++;
+		keyBytes = 0;
+		valueBytes = 0;
+		extraBytes = 0;
+		if (filter != null) {
+			filter.clear();
+		}
+		checkMemory();
 	}
 	
 	public boolean isEmpty() {
@@ -101,7 +196,20 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		if (isEmpty()) {
 			return true;
 		}
-		return Math.abs(height(root.left) - height(root.right)) < 2;
+		
+		switch (policy) {
+		case WAVL:
+			int leftDiff = root.rank - rank(root.left);
+			int rightDiff = root.rank - rank(root.right);
+			if (!root.hasLeft() && !root.hasRight()) {
+				return root.rank == 0;
+			}
+			return leftDiff >= 1 && leftDiff <= 2 && rightDiff >= 1 && rightDiff <= 2;
+		case RED_BLACK:
+			return !root.red && blackHeight(root.left) == blackHeight(root.right);
+		default:
+			return Math.abs(rank(root.left) - rank(root.right)) < 2;
+		}
 	}
 	
 	public int size() {
@@ -109,9 +217,160 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 	}
 	
 	public int height() {
+		if (height == UNKNOWN_HEIGHT) {
+			height = computeHeight(root);
+		}
 		return height;
 	}
 	
+	/**
+	 * Puts a counting Bloom filter in front of contains() and find(), so that
+	 * lookups of absent keys are usually answered without walking the tree. 
+	 * The filter is kept current by insert(), remove(), clear(), merge() and 
+	 * the range removals, and is rebuilt from the tree when it outgrows its 
+	 * capacity or its counters saturate. It costs about 
+	 * 4 * 1.44 * log2(1/rate) bits per key.
+	 * @param falsePositiveRate The target rate of absent keys that still
+	 * need a tree walk, in (0, 1).
+	 * @throws IllegalArgumentException If falsePositiveRate is not in (0, 1).
+	 */
+	public void enableMembershipFilter(double falsePositiveRate) {
+		// validate before the current filter is dropped
+		BloomFilter.checkRate(falsePositiveRate);
+		filterFalsePositiveRate = falsePositiveRate;
+		filter = null;
+		rebuildFilter();
+		checkMemory();
+	}
+	
+	/**
+	 * Removes the membership filter, if any.
+	 */
+	public void disableMembershipFilter() {
+		filter = null;
+		checkMemory();
+	}
+	
+	/**
+	 * Recycles nodes through a bounded {@link NodePool}: the nodes of removed 
+	 * entries are cleared and reused by later inserts instead of becoming 
+	 * garbage, and clear() returns the tree's nodes to the pool until it is 
+	 * full. Under steady insert/remove turnover this keeps node allocation
+	 * near zero, at the cost of keeping up to capacity idle nodes alive.
+	 * @param capacity The maximum number of idle nodes to keep.
+	 */
+	public void enableNodePool(int capacity) {
+		pool = new NodePool<Node<K,V>>(capacity);
+		checkMemory();
+	}
+	
+	/**
+	 * Stops recycling nodes and drops the idle nodes of the pool, if any.
+	 */
+	public void disableNodePool() {
+		pool = null;
+		checkMemory();
+	}
+	
+	/**
+	 * Returns the node pool, whose statistics show the memory it retains and 
+	 * the allocations it saves.
+	 * @return The node pool, or null if node recycling is not enabled.
+	 */
+	public NodePool<?> nodePool() {
+		return pool;
+	}
+	
+	/**
+	 * Estimates the memory of keys and values with the given estimators, on
+	 * top of the node, filter and pool overhead that is always accounted.
+	 * The current entries are measured once; from then on every update 
+	 * adjusts the estimate, so estimatedBytes() never walks the tree.
+	 * @param keyEstimator Estimates the size of a key, or null not to count
+	 * keys.
+	 * @param valueEstimator Estimates the size of a value, or null not to
+	 * count values.
+	 */
+	public void setSizeEstimators(SizeEstimator<? super K> keyEstimator, SizeEstimator<? super V> valueEstimator) {
+		this.keyEstimator = keyEstimator;
+		this.valueEstimator = valueEstimator;
+		keyBytes = 0;
+		valueBytes = 0;
+		extraBytes = 0;
+		accountAll(root);
+		checkMemory();
+	}
+	
+	/**
+	 * Returns the estimated heap memory of the tree in O(1): the shallow size
+	 * of its nodes, the sizes of its keys and values if estimators are set,
+	 * and the membership filter and node pool if enabled. Data subclasses 
+	 * keep beside a node's entry, such as the further values of a 
+	 * {@link MultimapTree} key, is counted with the nodes.
+	 * @return The estimated size of the tree in bytes.
+	 */
+	public long estimatedBytes() {
+		return (long) elements * nodeBytes() + extraBytes + keyBytes + valueBytes + filterBytes() + poolBytes();
+	}
+	
+	/**
+	 * Returns the estimated heap memory of the tree broken down by component.
+	 * @return The components of estimatedBytes().
+	 */
+	public MemoryFootprint memoryFootprint() {
+		return new MemoryFootprint((long) elements * nodeBytes() + extraBytes, keyBytes, valueBytes, filterBytes(),
+				poolBytes());
+	}
+	
+	/**
+	 * Registers a memory budget threshold. The listener is notified when 
+	 * estimatedBytes() reaches the threshold and when it drops back below it, 
+	 * at the end of the update that crossed it; if the tree is already at or 
+	 * above the threshold, it is notified right away. While no threshold is 
+	 * crossed, an update costs two extra comparisons.
+	 * @param bytes The threshold in bytes.
+	 * @param listener The listener to notify.
+	 */
+	public void addMemoryThreshold(long bytes, MemoryThresholdListener listener) {
+		if (thresholds == null) {
+			thresholds = new ArrayList<MemoryThreshold>();
+		}
+		int i = 0;
+		while (i < thresholds.size() && thresholds.get(i).bytes <= bytes) {
+			i++;
+		}
+		thresholds.add(i, new MemoryThreshold(bytes, listener));
+		updateThresholdBounds();
+		checkMemory();
+	}
+	
+	/**
+	 * Removes every threshold registered for the listener.
+	 * @param listener The listener to remove.
+	 */
+	public void removeMemoryThresholds(MemoryThresholdListener listener) {
+		if (thresholds == null) {
+			return;
+		}
+		for (int i = thresholds.size() - 1; i >= 0; i--) {
+			if (thresholds.get(i).listener == listener) {
+				thresholds.remove(i);
+			}
+		}
+		if (thresholds.isEmpty()) {
+			thresholds = null;
+		}
+		updateThresholdBounds();
+	}
+	
+	/**
+	 * Returns the balance policy this tree was constructed with.
+	 * @return The balance policy of the tree.
+	 */
+	public BalancePolicy policy() {
+		return policy;
+	}
+	
 	public void print() {
 		if (isEmpty()) {
 			System.out.println("(empty)");
@@ -119,6 +378,7 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		}
 		
 		// max width for complete tree at leaf level is CHARS_PER_NODE * 2^h - 1
+		int height = height();
 		int outputWidth = (CHARS_PER_NODE << height) - 1;
 		// one line for node values, one line for / \ branches per level
 		int outputHeight = 2 * height + 1;
@@ -237,71 +497,29 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 	}
 	
 	public K lowerKey(K key) {
-		if (isEmpty()) {
-			System.err.println("Error: tree is empty.");
-			return null;
-		} else if (!contains(key)) {
-			System.err.println("Error: tree does not contain key " + key + ".");
-			return null;
-		}
-		
-		Node<K,V> node = find(root, key);
-		if (node.hasLeft()) {
-			return node.left.key;
-		} else {
-			return null;
-		}
+		Node<K,V> node = lowerNode(key);
+		return node == null ? null : node.key;
 	}
 	
 	public Entry<K,V> lowerEntry(K key) {
-		if (isEmpty()) {
-			System.err.println("Error: tree is empty.");
-			return null;
-		} else if (!contains(key)) {
-			System.err.println("Error: tree does not contain key " + key + ".");
-			return null;
-		}
-		
-		Node<K,V> node = find(root, key);
-		if (node.hasLeft()) {
-			return new AbstractMap.SimpleEntry<K,V>(node.left.key, node.left.value);
-		} else {
+		Node<K,V> node = lowerNode(key);
+		if (node == null) {
 			return null;
 		}
+		return new AbstractMap.SimpleEntry<K,V>(node.key, node.value);
 	}
 	
 	public K higherKey(K key) {
-		if (isEmpty()) {
-			System.err.println("Error: tree is empty.");
-			return null;
-		} else if (!contains(key)) {
-			System.err.println("Error: tree does not contain key " + key + ".");
-			return null;
-		}
-		
-		Node<K,V> node = find(root, key);
-		if (node.hasRight()) {
-			return node.right.key;
-		} else {
-			return null;
-		}
+		Node<K,V> node = higherNode(key);
+		return node == null ? null : node.key;
 	}
 	
 	public Entry<K,V> higherEntry(K key) {
-		if (isEmpty()) {
-			System.err.println("Error: tree is empty.");
-			return null;
-		} else if (!contains(key)) {
-			System.err.println("Error: tree does not contain key " + key + ".");
-			return null;
-		}
-		
-		Node<K,V> node = find(root, key);
-		if (node.hasRight()) {
-			return new AbstractMap.SimpleEntry<K,V>(node.right.key, node.right.value);
-		} else {
+		Node<K,V> node = higherNode(key);
+		if (node == null) {
 			return null;
 		}
+		return new AbstractMap.SimpleEntry<K,V>(node.key, node.value);
 	}
 	
 	public K minKey() {
@@ -336,100 +554,882 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		}
 		Node<K,V> max = findMax(root);
 		return new AbstractMap.SimpleEntry<K,V>(max.key, max.value);
+	}	
+	/**
+	 * Merges a run of changes into the tree in O(n + m) time, where n is the 
+	 * size of the tree and m the size of the run. The existing nodes are 
+	 * flattened in order, merged with the run and relinked into a perfectly 
+	 * balanced shape, so no per-key searches or rotations are performed.
+	 * Both lists must be sorted by strictly increasing key and must not 
+	 * share keys.
+	 * @param upserts Entries to insert, or whose values replace existing ones.
+	 * @param removals Keys to remove from the tree; absent keys are ignored.
+	 */
+	public void merge(List<Entry<K,V>> upserts, List<K> removals) {
+		List<Node<K,V>> existing = new ArrayList<Node<K,V>>(elements);
+		inOrderNodes(root, existing);
+		
+		List<Node<K,V>> merged = new ArrayList<Node<K,V>>(elements + upserts.size());
+		int i = 0, j = 0, r = 0;
+		while (i < existing.size() || j < upserts.size()) {
+			int cmp;
+			if (i == existing.size()) {
+				cmp = 1;
+			} else if (j == upserts.size()) {
+				cmp = -1;
+			} else {
+				cmp = existing.get(i).key.compareTo(upserts.get(j).getKey());
+			}
+			
+			if (cmp < 0) {
+				Node<K,V> node = existing.get(i++);
+				while (r < removals.size() && removals.get(r).compareTo(node.key) < 0) {
+					r++;
+				}
+				if (r == removals.size() || removals.get(r).compareTo(node.key) != 0) {
+					merged.add(node);
+				} else {
+					account(node, -1);
+					release(node);
+				}
+			} else if (cmp > 0) {
+				Entry<K,V> entry = upserts.get(j++);
+				merged.add(newNode(entry.getKey(), entry.getValue()));
+				account(entry.getKey(), entry.getValue(), 1);
+			} else {
+				Node<K,V> node = existing.get(i++);
+				V newValue = upserts.get(j++).getValue();
+				accountValue(node.value, newValue);
+				node.value = newValue;
+				merged.add(node);
+			}
+		}
+		
+		root = build(merged, 0, merged.size() - 1, 0, redLevel(merged.size()));
+		if (root != null && policy == BalancePolicy.RED_BLACK) {
+			root.red = false;
+		}
+		elements = merged.size();
+		updateHeight();
+		modifications++;
+		if (filter != null) {
+			rebuildFilter();
+		}
+		checkMemory();
+	}
+	
+	/**
+	 * Removes every entry with a key less than key, e.g. to expire entries
+	 * older than a cutoff. Under the AVL and WAVL policies the tree is split
+	 * at key and the lower part is detached whole, so restructuring costs
+	 * O(logn) regardless of how many entries go; the removed nodes are then
+	 * visited once, in O(k), to count them and update the filter and pool.
+	 * Red-black trees remove the entries one by one in O(k logn).
+	 * @param key The exclusive upper bound of the keys to remove; it need
+	 * not be in the tree.
+	 * @return The number of entries removed.
+	 */
+	public int removeBelow(K key) {
+		return removeBelow(key, null);
+	}
+
+	/**
+	 * Removes every entry with a key less than key, see {@link #removeBelow(Comparable)}.
+	 * @param key The exclusive upper bound of the keys to remove.
+	 * @param listener Receives the removed entries in ascending key order,
+	 * or null.
+	 * @return The number of entries removed.
+	 */
+	public int removeBelow(K key, RemovalListener<? super K, ? super V> listener) {
+		return removeRange(null, false, key, false, listener);
+	}
+
+	/**
+	 * Removes every entry with a key greater than key, in O(logn) + O(k)
+	 * like {@link #removeBelow(Comparable)}.
+	 * @param key The exclusive lower bound of the keys to remove; it need
+	 * not be in the tree.
+	 * @return The number of entries removed.
+	 */
+	public int removeAbove(K key) {
+		return removeAbove(key, null);
+	}
+
+	/**
+	 * Removes every entry with a key greater than key, see {@link #removeAbove(Comparable)}.
+	 * @param key The exclusive lower bound of the keys to remove.
+	 * @param listener Receives the removed entries in ascending key order,
+	 * or null.
+	 * @return The number of entries removed.
+	 */
+	public int removeAbove(K key, RemovalListener<? super K, ? super V> listener) {
+		return removeRange(key, false, null, false, listener);
+	}
+
+	/**
+	 * Removes every entry with a key between lo and hi, in O(logn) + O(k)
+	 * like {@link #removeBelow(Comparable)}: the tree is split at both bounds
+	 * and the outer parts are joined back together.
+	 * @param lo The inclusive lower bound of the keys to remove.
+	 * @param hi The inclusive upper bound of the keys to remove.
+	 * @return The number of entries removed.
+	 * @throws IllegalArgumentException if hi is less than lo.
+	 */
+	public int removeRange(K lo, K hi) {
+		return removeRange(lo, hi, null);
+	}
+
+	/**
+	 * Removes every entry with a key between lo and hi, see
+	 * {@link #removeRange(Comparable, Comparable)}.
+	 * @param lo The inclusive lower bound of the keys to remove.
+	 * @param hi The inclusive upper bound of the keys to remove.
+	 * @param listener Receives the removed entries in ascending key order,
+	 * or null.
+	 * @return The number of entries removed.
+	 * @throws IllegalArgumentException if hi is less than lo.
+	 */
+	public int removeRange(K lo, K hi, RemovalListener<? super K, ? super V> listener) {
+		if (hi.compareTo(lo) < 0) {
+			throw new IllegalArgumentException("Range end " + hi + " is before start " + lo + ".");
+		}
+		return removeRange(lo, true, hi, true, listener);
+	}
+
+	/**
+	 * Returns a cursor positioned at the least entry of the tree. Cursors 
+	 * move between neighbouring entries in amortized O(1) and seek or insert 
+	 * starting from their current position, see {@link Cursor}.
+	 * @return A new cursor, positioned at no entry if the tree is empty.
+	 */
+	public Cursor cursor() {
+		Cursor cursor = new Cursor();
+		cursor.first();
+		return cursor;
 	}
 
+	/* Protected Methods */
+	
+	/**
+	 * Creates the node for a new entry. Subclasses that augment the tree
+	 * override this to return their own Node subclass.
+	 * @param key The key of the new entry.
+	 * @param value The value of the new entry.
+	 * @return A new leaf node.
+	 */
+	protected Node<K,V> createNode(K key, V value) {
+		return new Node<K,V>(key, value);
+	}
+	
+	/**
+	 * Recomputes augmented data stored in node from the node's own entry and 
+	 * its children. Called bottom-up whenever the subtree rooted at node may 
+	 * have changed: after inserts and removes below it, rotations, bulk 
+	 * builds and modifyValue(). The default tree carries no augmentation.
+	 * @param node The node to recompute.
+	 * @return true if the augmented data of node changed; false if it did 
+	 * not, in which case its ancestors need not be recomputed either.
+	 */
+	protected boolean augment(Node<K,V> node) {
+		return false;
+	}
+	
+	/**
+	 * Clears data a subclass keeps in a node that is about to be returned to
+	 * the node pool, so that the pool does not keep it reachable and the 
+	 * node can be reused for a new entry. The tree clears the entry, links 
+	 * and balance fields itself; augmented data is recomputed on reuse.
+	 * @param node The node being recycled.
+	 */
+	protected void recycle(Node<K,V> node) {
+	}
+	
+	/**
+	 * Returns the shallow size of one node for the memory accounting, see 
+	 * {@link MemoryFootprint}. Subclasses whose nodes carry more fields 
+	 * override this.
+	 * @return The bytes of a node, excluding its key and value.
+	 */
+	protected int nodeBytes() {
+		return NODE_BYTES;
+	}
+	
+	/**
+	 * Returns the size of data a subclass keeps in a node beside its entry,
+	 * such as further values, for the memory accounting. The tree adds it 
+	 * when it measures all entries and subtracts it when the node is 
+	 * removed; changes in between are reported through nodeChanged().
+	 * @param node The node to measure.
+	 * @return The bytes of the node's extra data, 0 by default.
+	 */
+	protected long extraBytes(Node<K,V> node) {
+		return 0;
+	}
+	
+	/**
+	 * Estimates the size of a value with the tree's value estimator, for 
+	 * subclasses that keep values outside the node's own value field.
+	 * @param value The value to measure.
+	 * @return The bytes of value, or 0 if it is null or values are not 
+	 * estimated.
+	 */
+	protected long estimatedValueBytes(V value) {
+		return valueEstimator == null || value == null ? 0 : valueEstimator.sizeOf(value);
+	}
+	
+	/**
+	 * Updates the memory accounting after a subclass changed a node in place,
+	 * replacing its value directly through {@link Node#setValue} or changing
+	 * its extra data, and notifies crossed memory thresholds. Call this once
+	 * the tree is consistent again, since listeners may modify it.
+	 * @param oldValue The value the node held before.
+	 * @param newValue The value the node holds now; the same as oldValue if 
+	 * only the extra data changed.
+	 * @param extraDelta The change in extraBytes() of the node.
+	 */
+	protected void nodeChanged(V oldValue, V newValue, long extraDelta) {
+		accountValue(oldValue, newValue);
+		extraBytes += extraDelta;
+		checkMemory();
+	}
+	
+	/**
+	 * Returns the root node of the tree, for subclasses that run their own 
+	 * queries over augmented data.
+	 * @return The root node, or null if the tree is empty.
+	 */
+	protected Node<K,V> root() {
+		return root;
+	}
+	
+	/**
+	 * Returns the node holding the given key.
+	 * @param key The key to search.
+	 * @return The matching node, or null if the tree does not contain key.
+	 */
+	protected Node<K,V> findNode(K key) {
+		Node<K,V> node = root;
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) {
+				return node;
+			}
+			node = cmp < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+	
+	/**
+	 * Re-runs augment() on every node from the given key's node up to the
+	 * root. Subclasses call this after changing data that their augmentation
+	 * depends on without changing the tree's structure.
+	 * @param key The key whose node and ancestors to recompute.
+	 */
+	protected void augmentPath(K key) {
+		augmentPath(root, key);
+	}
+	
 	/* Private Methods */
 	
-	private Node<K,V> copy(final Node<K,V> node) {
-		if (node == null) {
-			return null;
+	/*
+	 * Bookkeeping shared by insert() and Cursor.insert() once key is linked 
+	 * in. Callers run checkMemory() afterwards, once they no longer rely on
+	 * the modification count, as threshold listeners may modify the tree.
+	 */
+	private void inserted(K key, V value) {
+		if (policy == BalancePolicy.RED_BLACK) {
+			root.red = false;
 		}
+		elements++;
+		updateHeight();
+		modifications++;
 		
-		// make a deep copy of the other tree
-		Node<K,V> nodeCopy = new Node<K,V>(node.key, node.value);
-		nodeCopy.height = node.height;
-		nodeCopy.left  = copy(node.left);
-		nodeCopy.right = copy(node.right);
-		return nodeCopy;
+		if (filter != null) {
+			filter.add(key);
+			if (elements > filterCapacity) {
+				rebuildFilter();
+			}
+		}
+		account(key, value, 1);
 	}
-
-	private Node<K,V> find(Node<K,V> node, K key) {
-		if (key.compareTo(node.key) == 0) {
-			return node;
-		} else if (key.compareTo(node.key) < 0) {
-			return find(node.left, key);
-		} else {
-			return find(node.right, key);
+	
+	// adds (sign 1) or subtracts (sign -1) the estimated size of a node's data
+	private void account(Node<K,V> node, int sign) {
+		account(node.key, node.value, sign);
+		extraBytes += sign * extraBytes(node);
+	}
+	
+	// adds (sign 1) or subtracts (sign -1) the estimated size of an entry
+	private void account(K key, V value, int sign) {
+		if (keyEstimator != null) {
+			keyBytes += sign * keyEstimator.sizeOf(key);
+		}
+		if (valueEstimator != null && value != null) {
+			valueBytes += sign * valueEstimator.sizeOf(value);
 		}
 	}
 	
-	private Node<K,V> insert(Node<K,V> node, K key, V value) {
-		if (node == null) {
-			return new Node<K, V>(key, value);
-		} else if (key.compareTo(node.key) < 0) {
-			node.left = insert(node.left, key, value);
-		} else if (key.compareTo(node.key) > 0) {
-			node.right = insert(node.right, key, value); 
-		} else {
-			/* ignore duplicate keys */
+	private void accountValue(V oldValue, V newValue) {
+		if (valueEstimator != null) {
+			if (oldValue != null) {
+				valueBytes -= valueEstimator.sizeOf(oldValue);
+			}
+			if (newValue != null) {
+				valueBytes += valueEstimator.sizeOf(newValue);
+			}
 		}
-		return balance(node);
 	}
 	
-	private Node<K,V> remove(Node<K,V> node, K key) {
+	private void accountAll(Node<K,V> node) {
 		if (node == null) {
-			return null;
-		} else if (key.compareTo(node.key) < 0) {
-			node.left = remove(node.left, key);
-		} else if (key.compareTo(node.key) > 0) {
-			node.right = remove(node.right, key);
-		} else {
-			// found node to delete
-			if (node.hasBoth()) {
-				Node<K,V> successor = findMin(node.right);
-				node.key = successor.key;
-				node.value = successor.value;
-				node.right = remove(node.right, node.key);
-			} else if (node.hasLeft()) {
-				node = node.left;
-			} else if (node.hasRight()) {
-				node = node.right;
-			} else {
-				// node to delete is a leaf
-				node = null;
-			}
+			return;
 		}
-		return balance(node);
+		account(node, 1);
+		accountAll(node.left);
+		accountAll(node.right);
 	}
 	
-	private void modifyValue(Node<K,V> node, K key, V newValue) {
-		if (key.compareTo(node.key) == 0) {
-			node.value = newValue;
-		} else if (key.compareTo(node.key) < 0) {
-			modifyValue(node.left, key, newValue);
-		} else {
-			modifyValue(node.right, key, newValue);
+	private long filterBytes() {
+		return filter == null ? 0 : filter.estimatedBytes();
+	}
+	
+	private long poolBytes() {
+		if (pool == null) {
+			return 0;
 		}
+		return POOL_BYTES + MemoryFootprint.arrayBytes(pool.capacity(), MemoryFootprint.REFERENCE)
+				+ (long) pool.size() * nodeBytes();
 	}
 	
 	/*
-	 * This method keeps tree height-balanced according to
-	 * the AVL tree data structure constraints.
+	 * Notifies the listeners of thresholds the estimated size crossed since 
+	 * the last check. Listeners may update the tree, so each threshold is 
+	 * compared against a fresh estimate.
 	 */
-	private Node<K,V> balance(Node<K,V> node) {
-		if (node == null) {
-			return null;
+	private void checkMemory() {
+		if (thresholds == null) {
+			return;
+		}
+		long bytes = estimatedBytes();
+		if (bytes >= thresholdFloor && bytes < thresholdCeiling) {
+			return;
 		}
 		
-		if (height(node.left) - height(node.right) == L_HEAVY) {
-			if (height(node.left.left) - height(node.left.right) == LL_HEAVY) {
-				/*         o
-				 *        /
-				 *       o
-				 *      /
-				 *     o
-				 */
-				node = rotateRight(node);
+		for (MemoryThreshold threshold : new ArrayList<MemoryThreshold>(thresholds)) {
+			bytes = estimatedBytes();
+			if (!threshold.exceeded && bytes >= threshold.bytes) {
+				threshold.exceeded = true;
+				updateThresholdBounds();
+				threshold.listener.thresholdExceeded(threshold.bytes, bytes);
+			} else if (threshold.exceeded && bytes < threshold.bytes) {
+				threshold.exceeded = false;
+				updateThresholdBounds();
+				threshold.listener.thresholdCleared(threshold.bytes, bytes);
+			}
+		}
+	}
+	
+	private void updateThresholdBounds() {
+		thresholdFloor = Long.MIN_VALUE;
+		thresholdCeiling = Long.MAX_VALUE;
+		if (thresholds == null) {
+			return;
+		}
+		for (MemoryThreshold threshold : thresholds) {
+			if (threshold.exceeded) {
+				thresholdFloor = Math.max(thresholdFloor, threshold.bytes);
+			} else {
+				thresholdCeiling = Math.min(thresholdCeiling, threshold.bytes);
+			}
+		}
+	}
+	
+	// creates a node, reusing a pooled one if possible
+	private Node<K,V> newNode(K key, V value) {
+		if (pool != null) {
+			Node<K,V> node = pool.acquire();
+			if (node != null) {
+				node.key = key;
+				node.value = value;
+				return node;
+			}
+		}
+		return createNode(key, value);
+	}
+	
+	// returns a detached node to the pool, if any
+	private void release(Node<K,V> node) {
+		if (pool == null) {
+			return;
+		}
+		recycle(node);
+		node.key = null;
+		node.value = null;
+		node.left = null;
+		node.right = null;
+		node.rank = 0;
+		node.red = true;
+		pool.release(node);
+	}
+	
+	// releases the nodes of a subtree until the pool is full
+	private void releaseAll(Node<K,V> node) {
+		if (node == null || pool.isFull()) {
+			return;
+		}
+		Node<K,V> left = node.left;
+		Node<K,V> right = node.right;
+		release(node);
+		releaseAll(left);
+		releaseAll(right);
+	}
+	
+	private Node<K,V> copy(final Node<K,V> node) {
+		if (node == null) {
+			return null;
+		}
+		
+		// make a deep copy of the other tree
+		Node<K,V> nodeCopy = newNode(node.key, node.value);
+		nodeCopy.rank = node.rank;
+		nodeCopy.red = node.red;
+		nodeCopy.left  = copy(node.left);
+		nodeCopy.right = copy(node.right);
+		augment(nodeCopy);
+		return nodeCopy;
+	}
+
+	/*
+	 * Links the sorted nodes[lo..hi] into a perfectly balanced subtree and
+	 * returns its root. Ranks are subtree heights, which satisfy both the AVL
+	 * and WAVL rules. For red-black trees the incomplete bottom level 
+	 * (redLevel) is colored red and fixUp() makes the result left-leaning.
+	 */
+	private Node<K,V> build(List<Node<K,V>> nodes, int lo, int hi, int level, int redLevel) {
+		if (lo > hi) {
+			return null;
+		}
+		
+		int mid = (lo + hi) >>> 1;
+		Node<K,V> node = nodes.get(mid);
+		node.left = build(nodes, lo, mid - 1, level + 1, redLevel);
+		node.right = build(nodes, mid + 1, hi, level + 1, redLevel);
+		node.rank = Math.max(rank(node.left), rank(node.right)) + 1;
+		if (policy == BalancePolicy.RED_BLACK) {
+			node.red = level == redLevel;
+			node = fixUp(node);
+		} else {
+			update(node);
+		}
+		return node;
+	}
+	
+	// the level of a balanced tree built from size nodes that may be incomplete
+	private static int redLevel(int size) {
+		int level = 0;
+		for (int m = size - 1; m >= 0; m = m / 2 - 1) {
+			level++;
+		}
+		return level;
+	}
+	
+	/*
+	 * Removes the entries with keys between lo and hi, where a null bound
+	 * leaves that side open. Under AVL and WAVL the tree is split at both 
+	 * bounds, the middle part is detached as a whole and the outer parts are
+	 * joined; red-black trees remove the keys one at a time instead.
+	 */
+	private int removeRange(K lo, boolean loInclusive, K hi, boolean hiInclusive,
+			RemovalListener<? super K, ? super V> listener) {
+		if (root == null) {
+			return 0;
+		}
+		
+		int removed;
+		if (policy == BalancePolicy.RED_BLACK) {
+			List<Node<K,V>> nodes = new ArrayList<Node<K,V>>();
+			inRangeNodes(root, lo, loInclusive, hi, hiInclusive, nodes);
+			removed = nodes.size();
+			if ((long) removed * (32 - Integer.numberOfLeadingZeros(elements)) > elements) {
+				// k removals cost more than relinking the survivors as in merge()
+				List<Node<K,V>> all = new ArrayList<Node<K,V>>(elements);
+				inOrderNodes(root, all);
+				List<Node<K,V>> kept = new ArrayList<Node<K,V>>(elements - removed);
+				for (Node<K,V> node : all) {
+					if (!inRange(node.key, lo, loInclusive, hi, hiInclusive)) {
+						kept.add(node);
+					}
+				}
+				root = build(kept, 0, kept.size() - 1, 0, redLevel(kept.size()));
+				if (root != null) {
+					root.red = false;
+				}
+			} else {
+				for (Node<K,V> node : nodes) {
+					if (!isRed(root.left) && !isRed(root.right)) {
+						root.red = true;
+					}
+					root = removeRB(root, node.key);
+					if (root != null) {
+						root.red = false;
+					}
+				}
+			}
+			for (Node<K,V> node : nodes) {
+				discard(node, listener);
+			}
+		} else {
+			Halves<K,V> halves = new Halves<K,V>();
+			Node<K,V> below = null, middle = root, above = null;
+			if (lo != null) {
+				split(middle, lo, !loInclusive, halves);
+				below = halves.low;
+				middle = halves.high;
+			}
+			if (hi != null) {
+				split(middle, hi, hiInclusive, halves);
+				middle = halves.low;
+				above = halves.high;
+			}
+			root = join(below, above);
+			removed = discardAll(middle, listener);
+		}
+		
+		elements -= removed;
+		updateHeight();
+		// splitting and joining reshape the tree even if nothing was removed
+		modifications++;
+		if (filter != null && filter.isSaturated()) {
+			rebuildFilter();
+		}
+		checkMemory();
+		return removed;
+	}
+	
+	/*
+	 * Splits a subtree into the keys less than key (or equal, if inclusive)
+	 * in halves.low and the rest in halves.high. Each node on the search path
+	 * is joined with its subtree on the far side onto the half it belongs
+	 * to; the rank differences of successive joins telescope, so the split
+	 * costs O(logn) in total.
+	 */
+	private void split(Node<K,V> node, K key, boolean inclusive, Halves<K,V> halves) {
+		if (node == null) {
+			halves.low = null;
+			halves.high = null;
+			return;
+		}
+		
+		int cmp = node.key.compareTo(key);
+		if (cmp < 0 || (cmp == 0 && inclusive)) {
+			split(node.right, key, inclusive, halves);
+			halves.low = join(node.left, node, halves.low);
+		} else {
+			split(node.left, key, inclusive, halves);
+			halves.high = join(halves.high, node, node.right);
+		}
+	}
+	
+	/*
+	 * Joins two subtrees and a middle node whose key lies between theirs
+	 * into one balanced subtree. The middle node is linked in on the inner 
+	 * spine of the taller subtree where the ranks of both sides meet, and the 
+	 * nodes above it are rebalanced as after an insert, which is valid for
+	 * AVL heights and WAVL ranks alike. Costs O(|rank(left) - rank(right)| + 1).
+	 */
+	private Node<K,V> join(Node<K,V> left, Node<K,V> middle, Node<K,V> right) {
+		if (rank(left) > rank(right) + 1) {
+			left.right = join(left.right, middle, right);
+			return rebalance(left);
+		} else if (rank(right) > rank(left) + 1) {
+			right.left = join(left, middle, right.left);
+			return rebalance(right);
+		}
+		middle.left = left;
+		middle.right = right;
+		middle.rank = Math.max(rank(left), rank(right)) + 1;
+		update(middle);
+		return middle;
+	}
+	
+	// joins two ordered subtrees, taking the least node of right as the middle
+	private Node<K,V> join(Node<K,V> left, Node<K,V> right) {
+		if (left == null) {
+			return right;
+		} else if (right == null) {
+			return left;
+		}
+		Node<K,V> middle = findMin(right);
+		return join(left, middle, removeMin(right));
+	}
+	
+	private void inRangeNodes(Node<K,V> node, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+			List<Node<K,V>> nodes) {
+		if (node == null) {
+			return;
+		}
+		boolean afterLo = lo == null || node.key.compareTo(lo) >= (loInclusive ? 0 : 1);
+		boolean beforeHi = hi == null || node.key.compareTo(hi) <= (hiInclusive ? 0 : -1);
+		if (afterLo) {
+			inRangeNodes(node.left, lo, loInclusive, hi, hiInclusive, nodes);
+		}
+		if (afterLo && beforeHi) {
+			nodes.add(node);
+		}
+		if (beforeHi) {
+			inRangeNodes(node.right, lo, loInclusive, hi, hiInclusive, nodes);
+		}
+	}
+	
+	private boolean inRange(K key, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		return (lo == null || key.compareTo(lo) >= (loInclusive ? 0 : 1))
+				&& (hi == null || key.compareTo(hi) <= (hiInclusive ? 0 : -1));
+	}
+	
+	// hands a detached subtree's entries to discard() in key order and counts them
+	private int discardAll(Node<K,V> node, RemovalListener<? super K, ? super V> listener) {
+		if (node == null) {
+			return 0;
+		}
+		Node<K,V> right = node.right;
+		int count = discardAll(node.left, listener);
+		discard(node, listener);
+		return count + 1 + discardAll(right, listener);
+	}
+	
+	// drops a removed entry from the filter, releases its node and reports it
+	private void discard(Node<K,V> node, RemovalListener<? super K, ? super V> listener) {
+		K key = node.key;
+		V value = node.value;
+		if (filter != null) {
+			filter.remove(key);
+		}
+		account(node, -1);
+		release(node);
+		if (listener != null) {
+			listener.removed(key, value);
+		}
+	}
+	
+	/*
+	 * Sizes a new filter for twice the current number of keys, so it is 
+	 * rebuilt after the tree doubles, and fills it with every key.
+	 */
+	private void rebuildFilter() {
+		filterCapacity = Math.max(MIN_FILTER_CAPACITY, 2 * elements);
+		CountingBloomFilter<K> rebuilt = new CountingBloomFilter<K>(filterCapacity, filterFalsePositiveRate);
+		List<K> keys = new ArrayList<K>(elements);
+		inOrderKeys(root, keys);
+		for (K key : keys) {
+			rebuilt.add(key);
+		}
+		filter = rebuilt;
+	}
+	
+	private void augmentPath(Node<K,V> node, K key) {
+		if (node == null) {
+			return;
+		}
+		int cmp = key.compareTo(node.key);
+		if (cmp < 0) {
+			augmentPath(node.left, key);
+		} else if (cmp > 0) {
+			augmentPath(node.right, key);
+		}
+		augment(node);
+	}
+	
+	private Node<K,V> find(Node<K,V> node, K key) {
+		if (key.compareTo(node.key) == 0) {
+			return node;
+		} else if (key.compareTo(node.key) < 0) {
+			return find(node.left, key);
+		} else {
+			return find(node.right, key);
+		}
+	}
+	
+	// the node with the greatest key strictly less than key, if any
+	private Node<K,V> lowerNode(K key) {
+		Node<K,V> lower = null;
+		Node<K,V> node = root;
+		while (node != null) {
+			if (key.compareTo(node.key) > 0) {
+				lower = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return lower;
+	}
+	
+	// the node with the least key strictly greater than key, if any
+	private Node<K,V> higherNode(K key) {
+		Node<K,V> higher = null;
+		Node<K,V> node = root;
+		while (node != null) {
+			if (key.compareTo(node.key) < 0) {
+				higher = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return higher;
+	}
+	
+	private Node<K,V> insert(Node<K,V> node, K key, V value) {
+		if (node == null) {
+			Node<K,V> leaf = newNode(key, value);
+			update(leaf);
+			return leaf;
+		} else if (key.compareTo(node.key) < 0) {
+			node.left = insert(node.left, key, value);
+		} else if (key.compareTo(node.key) > 0) {
+			node.right = insert(node.right, key, value); 
+		} else {
+			/* ignore duplicate keys */
+		}
+		return rebalance(node);
+	}
+	
+	private Node<K,V> remove(Node<K,V> node, K key) {
+		if (node == null) {
+			return null;
+		} else if (key.compareTo(node.key) < 0) {
+			node.left = remove(node.left, key);
+		} else if (key.compareTo(node.key) > 0) {
+			node.right = remove(node.right, key);
+		} else {
+			// found node to delete
+			if (node.hasBoth()) {
+				// relink the successor node in place of the deleted one
+				Node<K,V> successor = findMin(node.right);
+				successor.right = removeMin(node.right);
+				successor.left = node.left;
+				successor.rank = node.rank;
+				node = successor;
+			} else if (node.hasLeft()) {
+				node = node.left;
+			} else if (node.hasRight()) {
+				node = node.right;
+			} else {
+				// node to delete is a leaf
+				node = null;
+			}
+		}
+		return rebalance(node);
+	}
+	
+	private Node<K,V> removeMin(Node<K,V> node) {
+		if (!node.hasLeft()) {
+			return node.right;
+		}
+		node.left = removeMin(node.left);
+		return rebalance(node);
+	}
+	
+	private V modifyValue(Node<K,V> node, K key, V newValue) {
+		V oldVal;
+		if (key.compareTo(node.key) == 0) {
+			oldVal = node.value;
+			node.value = newValue;
+		} else if (key.compareTo(node.key) < 0) {
+			oldVal = modifyValue(node.left, key, newValue);
+		} else {
+			oldVal = modifyValue(node.right, key, newValue);
+		}
+		// augmentation may depend on values
+		augment(node);
+		return oldVal;
+	}
+	
+	/*
+	 * Removes key from a left-leaning red-black subtree. Red links are
+	 * pushed down the search path (moveRedLeft/moveRedRight) so that the 
+	 * node finally deleted is never a black leaf, then fixUp() restores the
+	 * invariants on the way back up. Assumes key exists in the subtree.
+	 */
+	private Node<K,V> removeRB(Node<K,V> node, K key) {
+		if (key.compareTo(node.key) < 0) {
+			if (!isRed(node.left) && !isRed(node.left.left)) {
+				node = moveRedLeft(node);
+			}
+			node.left = removeRB(node.left, key);
+		} else {
+			if (isRed(node.left)) {
+				node = rotateRightRB(node);
+			}
+			if (key.compareTo(node.key) == 0 && !node.hasRight()) {
+				// node to delete is a red leaf
+				return null;
+			}
+			if (!isRed(node.right) && !isRed(node.right.left)) {
+				node = moveRedRight(node);
+			}
+			if (key.compareTo(node.key) == 0) {
+				Node<K,V> successor = findMin(node.right);
+				successor.right = removeMinRB(node.right);
+				successor.left = node.left;
+				successor.red = node.red;
+				node = successor;
+			} else {
+				node.right = removeRB(node.right, key);
+			}
+		}
+		return fixUp(node);
+	}
+	
+	private Node<K,V> removeMinRB(Node<K,V> node) {
+		if (!node.hasLeft()) {
+			return null;
+		}
+		if (!isRed(node.left) && !isRed(node.left.left)) {
+			node = moveRedLeft(node);
+		}
+		node.left = removeMinRB(node.left);
+		return fixUp(node);
+	}
+	
+	/*
+	 * Restores the balance invariant of the tree's policy at node after
+	 * one of its subtrees was modified by an insert or remove.
+	 */
+	private Node<K,V> rebalance(Node<K,V> node) {
+		if (node == null) {
+			return null;
+		}
+		
+		switch (policy) {
+		case WAVL:
+			return balanceWAVL(node);
+		case RED_BLACK:
+			return fixUp(node);
+		default:
+			return balance(node);
+		}
+	}
+	
+	/*
+	 * This method keeps tree height-balanced according to
+	 * the AVL tree data structure constraints. Under the AVL
+	 * policy a node's rank is the height of its subtree.
+	 */
+	private Node<K,V> balance(Node<K,V> node) {
+		if (node == null) {
+			return null;
+		}
+		
+		if (rank(node.left) - rank(node.right) == L_HEAVY) {
+			if (rank(node.left.left) - rank(node.left.right) != RR_HEAVY) {
+				/*         o
+				 *        /
+				 *       o
+				 *      /
+				 *     o
+				 */
+				node = rotateRight(node);
 			} else {
 				/*       o
 				 *      /
@@ -439,8 +1439,8 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 				 */
 				node = rotateLeftRight(node);
 			}
-		} else if (height(node.left) - height(node.right) == R_HEAVY) {
-			if (height(node.right.left) - height(node.right.right) == RR_HEAVY) {
+		} else if (rank(node.left) - rank(node.right) == R_HEAVY) {
+			if (rank(node.right.left) - rank(node.right.right) != LL_HEAVY) {
 				/*     o
 				 *      \
 				 *       o
@@ -459,17 +1459,163 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 			}
 		}
 		
-		node.height = Math.max(height(node.left), height(node.right)) + 1;
+		update(node);
+		return node;
+	}
+	
+	/*
+	 * This method keeps the tree rank-balanced according to the weak AVL
+	 * constraints: every rank difference is 1 or 2 and every leaf has rank 0.
+	 * An insert can leave a child with rank difference 0 and a remove can
+	 * leave one with rank difference 3 (or a 2,2 leaf); both are repaired 
+	 * by promotions/demotions that move up the tree, ending in at most two 
+	 * rotations.
+	 */
+	private Node<K,V> balanceWAVL(Node<K,V> node) {
+		int leftDiff = node.rank - rank(node.left);
+		int rightDiff = node.rank - rank(node.right);
+		
+		if (leftDiff == 0) {
+			if (rightDiff == 1) {
+				node.rank++;
+			} else if (node.left.rank - rank(node.left.left) == 1) {
+				node = rotateRight(node);
+				node.right.rank--;
+			} else {
+				node = rotateLeftRight(node);
+				node.rank++;
+				node.left.rank--;
+				node.right.rank--;
+			}
+		} else if (rightDiff == 0) {
+			if (leftDiff == 1) {
+				node.rank++;
+			} else if (node.right.rank - rank(node.right.right) == 1) {
+				node = rotateLeft(node);
+				node.left.rank--;
+			} else {
+				node = rotateRightLeft(node);
+				node.rank++;
+				node.left.rank--;
+				node.right.rank--;
+			}
+		} else if (leftDiff == 3) {
+			Node<K,V> sibling = node.right;
+			int outerDiff = sibling.rank - rank(sibling.right);
+			int innerDiff = sibling.rank - rank(sibling.left);
+			if (rightDiff == 2) {
+				node.rank--;
+			} else if (outerDiff == 2 && innerDiff == 2) {
+				node.rank--;
+				sibling.rank--;
+			} else if (outerDiff == 1) {
+				node = rotateLeft(node);
+				node.rank++;
+				node.left.rank--;
+				if (!node.left.hasLeft() && !node.left.hasRight()) {
+					node.left.rank = 0;
+				}
+			} else {
+				node = rotateRightLeft(node);
+				node.rank += 2;
+				node.left.rank -= 2;
+				node.right.rank--;
+			}
+		} else if (rightDiff == 3) {
+			Node<K,V> sibling = node.left;
+			int outerDiff = sibling.rank - rank(sibling.left);
+			int innerDiff = sibling.rank - rank(sibling.right);
+			if (leftDiff == 2) {
+				node.rank--;
+			} else if (outerDiff == 2 && innerDiff == 2) {
+				node.rank--;
+				sibling.rank--;
+			} else if (outerDiff == 1) {
+				node = rotateRight(node);
+				node.rank++;
+				node.right.rank--;
+				if (!node.right.hasLeft() && !node.right.hasRight()) {
+					node.right.rank = 0;
+				}
+			} else {
+				node = rotateLeftRight(node);
+				node.rank += 2;
+				node.right.rank -= 2;
+				node.left.rank--;
+			}
+		} else if (!node.hasLeft() && !node.hasRight()) {
+			// a 2,2 leaf left behind by a remove
+			node.rank = 0;
+		}
+		update(node);
+		return node;
+	}
+	
+	/*
+	 * This method keeps the tree balanced according to the left-leaning
+	 * red-black constraints: red links lean left and no node has two red
+	 * links touching it.
+	 */
+	private Node<K,V> fixUp(Node<K,V> node) {
+		if (isRed(node.right) && !isRed(node.left)) {
+			node = rotateLeftRB(node);
+		}
+		if (isRed(node.left) && isRed(node.left.left)) {
+			node = rotateRightRB(node);
+		}
+		if (isRed(node.left) && isRed(node.right)) {
+			flipColors(node);
+		}
+		update(node);
+		return node;
+	}
+	
+	private Node<K,V> moveRedLeft(Node<K,V> node) {
+		flipColors(node);
+		if (isRed(node.right.left)) {
+			node.right = rotateRightRB(node.right);
+			node = rotateLeftRB(node);
+			flipColors(node);
+		}
+		return node;
+	}
+	
+	private Node<K,V> moveRedRight(Node<K,V> node) {
+		flipColors(node);
+		if (isRed(node.left.left)) {
+			node = rotateRightRB(node);
+			flipColors(node);
+		}
 		return node;
 	}
 	
+	private void flipColors(Node<K,V> node) {
+		node.red = !node.red;
+		node.left.red = !node.left.red;
+		node.right.red = !node.right.red;
+	}
+	
+	private Node<K,V> rotateLeftRB(Node<K,V> node) {
+		Node<K,V> pivot = rotateLeft(node);
+		pivot.red = node.red;
+		node.red = true;
+		return pivot;
+	}
+	
+	private Node<K,V> rotateRightRB(Node<K,V> node) {
+		Node<K,V> pivot = rotateRight(node);
+		pivot.red = node.red;
+		node.red = true;
+		return pivot;
+	}
+	
 	private Node<K,V> rotateLeft(Node<K,V> node) {
 		if (node.hasRight()) {		
 			Node<K,V> pivot = node.right;
 			node.right = pivot.left;
 			pivot.left = node;
-			node.height = Math.max(height(node.left), height(node.right)) + 1;
-			pivot.height = Math.max(height(pivot.left), height(pivot.right)) + 1;
+			update(node);
+			update(pivot);
 			return pivot;
 		}
 		return node;
@@ -480,8 +1626,8 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 			Node<K,V> pivot = node.left;
 			node.left = pivot.right;
 			pivot.right = node;
-			node.height = Math.max(height(node.left), height(node.right)) + 1;
-			pivot.height = Math.max(height(pivot.left), height(pivot.right)) + 1;
+			update(node);
+			update(pivot);
 			return pivot;
 		}
 		return node;
@@ -497,11 +1643,64 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		return rotateLeft(node);
 	}
 	
-	private int height(Node<K,V> node) {
+	/*
+	 * Recomputes the fields of node derived from its children: the AVL rank
+	 * and any subclass augmentation. WAVL ranks and red-black colors are 
+	 * adjusted explicitly by the rebalancing code.
+	 */
+	private void update(Node<K,V> node) {
+		if (policy == BalancePolicy.AVL) {
+			node.rank = Math.max(rank(node.left), rank(node.right)) + 1;
+		}
+		augment(node);
+	}
+	
+	private int rank(Node<K,V> node) {
+		if (node == null) {
+			return -1;
+		}
+		return node.rank;
+	}
+	
+	private boolean isRed(Node<K,V> node) {
+		if (node == null) {
+			return false;
+		}
+		return node.red;
+	}
+	
+	private int blackHeight(Node<K,V> node) {
+		int blackHeight = 0;
+		for (; node != null; node = node.left) {
+			if (!node.red) {
+				blackHeight++;
+			}
+		}
+		return blackHeight;
+	}
+	
+	private void updateHeight() {
+		if (policy == BalancePolicy.AVL) {
+			height = rank(root);
+		} else {
+			height = UNKNOWN_HEIGHT;
+		}
+	}
+	
+	private int computeHeight(Node<K,V> node) {
 		if (node == null) {
 			return -1;
 		}
-		return node.height;
+		return Math.max(computeHeight(node.left), computeHeight(node.right)) + 1;
+	}
+	
+	private void inOrderNodes(Node<K,V> node, List<Node<K,V>> nodes) {
+		if (node == null) {
+			return;
+		}
+		inOrderNodes(node.left, nodes);
+		nodes.add(node);
+		inOrderNodes(node.right, nodes);
 	}
 	
 	private void inOrderKeys(Node<K,V> node, List<K> keys) {
@@ -599,25 +1798,30 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		}
 	}
 	
-	/*
+	/**
 	 * The internal node class for this tree. Each node
-	 * stores a unique key, value, and height for the subtree 
-	 * rooted at that node, as well as references to left and 
-	 * right children.
+	 * stores a unique key, value, and balance information (the
+	 * rank, which is the subtree height under AVL, and the link
+	 * color under red-black) for the subtree rooted at that node, 
+	 * as well as references to left and right children.
+	 * Subclasses of the tree may extend it to carry augmented 
+	 * subtree data; the tree's structure is read-only to them.
 	 */
-	private static class Node<K extends Comparable<? super K>, V> {
+	protected static class Node<K extends Comparable<? super K>, V> {
 		private K key;
 		private V value;
 		private Node<K, V> left;
 		private Node<K, V> right;
-		private int height;
+		private int rank;
+		private boolean red;
 		
 		public Node(K key, V value) {
 			this.key = key;
 			this.value = value;
 			left = null;
 			right = null;
-			height = 0;
+			rank = 0;
+			red = true;
 		}
 		
 		public boolean hasLeft() {
@@ -631,6 +1835,396 @@ public class AVLTree<K extends Comparable<? super K>, V> implements BinarySearch
 		public boolean hasBoth() {
 			return hasLeft() && hasRight();
 		}
+		
+		public K getKey() {
+			return key;
+		}
+		
+		public V getValue() {
+			return value;
+		}
+		
+		public V setValue(V value) {
+			V oldVal = this.value;
+			this.value = value;
+			return oldVal;
+		}
+		
+		public Node<K,V> getLeft() {
+			return left;
+		}
+		
+		public Node<K,V> getRight() {
+			return right;
+		}
+	}
+	
+	// a memory budget threshold and whether the estimate is at or above it
+	private static class MemoryThreshold {
+		private final long bytes;
+		private final MemoryThresholdListener listener;
+		private boolean exceeded;
+		
+		private MemoryThreshold(long bytes, MemoryThresholdListener listener) {
+			this.bytes = bytes;
+			this.listener = listener;
+			exceeded = false;
+		}
+	}
+	
+	// the two subtrees split() produces
+	private static class Halves<K extends Comparable<? super K>, V> {
+		private Node<K,V> low;
+		private Node<K,V> high;
+	}
+	
+	/**
+	 * A position in the tree that remembers the path from the root to its 
+	 * entry. next() and prev() move to neighbouring entries in amortized 
+	 * O(1), and seek() and insert() search from the current position instead 
+	 * of the root: they climb only as far as the lowest ancestor whose key 
+	 * range holds the target and descend from there. Moving to a nearby key
+	 * therefore skips most of the search path, and a cursor appending 
+	 * increasing keys at the right edge of the tree does not climb at all. 
+	 * A finger insert rebalances bottom-up along the saved path and stops as 
+	 * soon as the nodes above are unaffected.
+	 * 
+	 * A cursor is positioned at an entry or, e.g. after moving past either 
+	 * end, at none. Changing the tree other than through the cursor makes it
+	 * stale: first(), last(), seek() and insert() reposition it, and all
+	 * other methods throw ConcurrentModificationException.
+	 */
+	public class Cursor {
+		private static final int INITIAL_DEPTH = 32;
+		
+		// path[0] is the root and path[depth - 1] the current node
+		private Node<K,V>[] path;
+		// the deepest level at or above i whose node is a left (right) child,
+		// or 0 if there is none, so climb() skips the other ancestors
+		private int[] leftTurns;
+		private int[] rightTurns;
+		private int depth;
+		private int expectedModifications;
+		
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private Cursor() {
+			path = (Node<K,V>[]) new Node[INITIAL_DEPTH];
+			leftTurns = new int[INITIAL_DEPTH];
+			rightTurns = new int[INITIAL_DEPTH];
+			depth = 0;
+			expectedModifications = modifications;
+		}
+		
+		/**
+		 * Checks if the cursor is positioned at an entry of the current tree.
+		 * @return true if getKey() and the other accessors may be called.
+		 */
+		public boolean isValid() {
+			return depth > 0 && expectedModifications == modifications;
+		}
+		
+		/**
+		 * Moves to the least entry of the tree.
+		 * @return true if the tree has an entry to move to; false otherwise.
+		 */
+		public boolean first() {
+			reset();
+			for (Node<K,V> node = root; node != null; node = node.left) {
+				push(node);
+			}
+			return depth > 0;
+		}
+		
+		/**
+		 * Moves to the greatest entry of the tree.
+		 * @return true if the tree has an entry to move to; false otherwise.
+		 */
+		public boolean last() {
+			reset();
+			for (Node<K,V> node = root; node != null; node = node.right) {
+				push(node);
+			}
+			return depth > 0;
+		}
+		
+		/**
+		 * Moves to the entry with the next greater key.
+		 * @return true if there is such an entry; false if the cursor was at
+		 * the greatest entry and is now at none.
+		 */
+		public boolean next() {
+			checkPosition();
+			Node<K,V> node = path[depth - 1];
+			if (node.hasRight()) {
+				for (node = node.right; node != null; node = node.left) {
+					push(node);
+				}
+				return true;
+			}
+			// climb past every ancestor whose right subtree we were in
+			while (depth > 1 && path[depth - 1] == path[depth - 2].right) {
+				depth--;
+			}
+			depth--;
+			return depth > 0;
+		}
+		
+		/**
+		 * Moves to the entry with the next smaller key.
+		 * @return true if there is such an entry; false if the cursor was at
+		 * the least entry and is now at none.
+		 */
+		public boolean prev() {
+			checkPosition();
+			Node<K,V> node = path[depth - 1];
+			if (node.hasLeft()) {
+				for (node = node.left; node != null; node = node.right) {
+					push(node);
+				}
+				return true;
+			}
+			// climb past every ancestor whose left subtree we were in
+			while (depth > 1 && path[depth - 1] == path[depth - 2].left) {
+				depth--;
+			}
+			depth--;
+			return depth > 0;
+		}
+		
+		public K getKey() {
+			checkPosition();
+			return path[depth - 1].key;
+		}
+		
+		public V getValue() {
+			checkPosition();
+			return path[depth - 1].value;
+		}
+		
+		/**
+		 * Replaces the value of the entry at the cursor.
+		 * @param value The new value.
+		 * @return The previous value.
+		 */
+		public V setValue(V value) {
+			checkPosition();
+			V oldVal = path[depth - 1].setValue(value);
+			// augmentation may depend on values
+			int level = depth - 1;
+			while (level >= 0 && augment(path[level])) {
+				level--;
+			}
+			accountValue(oldVal, value);
+			checkMemory();
+			return oldVal;
+		}
+		
+		/**
+		 * Moves to the least entry with a key greater than or equal to the 
+		 * given key, searching from the current position.
+		 * @param key The key to seek.
+		 * @return true if the tree contains key; false otherwise, in which 
+		 * case the cursor is at the next greater entry or, if there is none,
+		 * at no entry.
+		 */
+		public boolean seek(K key) {
+			if (locate(key)) {
+				return true;
+			}
+			if (depth > 0 && key.compareTo(path[depth - 1].key) > 0) {
+				next();
+			}
+			return false;
+		}
+		
+		/**
+		 * Inserts an entry, searching for its place from the current position,
+		 * and moves to it. Inserting ascending keys through one cursor costs 
+		 * amortized O(1) per key under every balance policy.
+		 * @param key The key to insert.
+		 * @param value The corresponding value to insert.
+		 * @return true if the entry was inserted; false if the tree already 
+		 * contains key, in which case the cursor moves to its entry and the 
+		 * value is left unchanged.
+		 */
+		public boolean insert(K key, V value) {
+			if (locate(key)) {
+				return false;
+			}
+			
+			Node<K,V> leaf = newNode(key, value);
+			update(leaf);
+			if (depth == 0) {
+				root = leaf;
+			} else if (key.compareTo(path[depth - 1].key) < 0) {
+				path[depth - 1].left = leaf;
+			} else {
+				path[depth - 1].right = leaf;
+			}
+			push(leaf);
+			
+			int level = rebalancePath();
+			inserted(key, value);
+			expectedModifications = modifications;
+			// rotations below level may have reshaped the saved path
+			depth = Math.max(level, 0) + 1;
+			descend(key);
+			// a listener modifying the tree invalidates the cursor
+			checkMemory();
+			return true;
+		}
+		
+		/**
+		 * Removes the entry at the cursor and moves to the next greater entry.
+		 * Unlike moving and inserting this costs O(logn): the entry is removed
+		 * as by {@link AVLTree#remove} and the next key is sought from the root.
+		 * @return The value of the removed entry.
+		 */
+		public V remove() {
+			checkPosition();
+			K key = path[depth - 1].key;
+			K nextKey = next() ? path[depth - 1].key : null;
+			V oldVal = AVLTree.this.remove(key);
+			depth = 0;
+			if (nextKey != null) {
+				seek(nextKey);
+			}
+			return oldVal;
+		}
+		
+		/* Private Methods */
+		
+		private void reset() {
+			depth = 0;
+			expectedModifications = modifications;
+		}
+		
+		private void checkPosition() {
+			if (expectedModifications != modifications) {
+				throw new ConcurrentModificationException();
+			} else if (depth == 0) {
+				throw new NoSuchElementException();
+			}
+		}
+		
+		// the node must already be linked as a child of the current node
+		private void push(Node<K,V> node) {
+			if (depth == path.length) {
+				path = Arrays.copyOf(path, 2 * depth);
+				leftTurns = Arrays.copyOf(leftTurns, 2 * depth);
+				rightTurns = Arrays.copyOf(rightTurns, 2 * depth);
+			}
+			if (depth == 0) {
+				leftTurns[0] = 0;
+				rightTurns[0] = 0;
+			} else if (path[depth - 1].left == node) {
+				leftTurns[depth] = depth;
+				rightTurns[depth] = rightTurns[depth - 1];
+			} else {
+				leftTurns[depth] = leftTurns[depth - 1];
+				rightTurns[depth] = depth;
+			}
+			path[depth++] = node;
+		}
+		
+		/*
+		 * Positions the cursor at key's node, or at the node key would be a 
+		 * child of, starting from the current position when it is valid.
+		 */
+		private boolean locate(K key) {
+			if (!isValid()) {
+				reset();
+				if (root == null) {
+					return false;
+				}
+				push(root);
+			} else {
+				climb(key);
+			}
+			return descend(key);
+		}
+		
+		/*
+		 * Shortens the path to the lowest node whose subtree may hold key. 
+		 * A subtree's bound on key's side is set by the nearest ancestor where
+		 * the path turns towards key, so only those ancestors are visited, 
+		 * and none on the right edge when appending greater keys.
+		 */
+		private void climb(K key) {
+			int cmp = key.compareTo(path[depth - 1].key);
+			if (cmp == 0) {
+				return;
+			}
+			
+			int[] turns = cmp > 0 ? leftTurns : rightTurns;
+			int keep = depth;
+			for (int i = turns[depth - 1]; i > 0; i = turns[i - 1]) {
+				int bound = key.compareTo(path[i - 1].key);
+				if (cmp > 0 ? bound < 0 : bound > 0) {
+					break;
+				}
+				keep = i;
+				if (bound == 0) {
+					break;
+				}
+			}
+			depth = keep;
+		}
+		
+		// searches down from the current node, extending the path
+		private boolean descend(K key) {
+			Node<K,V> node = path[depth - 1];
+			int cmp = key.compareTo(node.key);
+			while (cmp != 0) {
+				node = cmp < 0 ? node.left : node.right;
+				if (node == null) {
+					return false;
+				}
+				push(node);
+				cmp = key.compareTo(node.key);
+			}
+			return true;
+		}
+		
+		/*
+		 * Rebalances the nodes above a new leaf from the bottom up, as the 
+		 * recursive insert does on its way back to the root, relinking rotated
+		 * subtrees into their parents. Stops at the first node that was not 
+		 * rotated and kept its rank and color (and, for red-black trees, is
+		 * black so its parent never inspects below it): the nodes above see 
+		 * the same children as before, and only their augmented data is 
+		 * recomputed, for as long as it changes. Returns the level of the 
+		 * last node rebalanced, or -1 if rebalancing passed the root.
+		 */
+		private int rebalancePath() {
+			int level = depth - 2;
+			while (level >= 0) {
+				Node<K,V> node = path[level];
+				int oldRank = node.rank;
+				boolean oldRed = node.red;
+				Node<K,V> subtree = rebalance(node);
+				path[level] = subtree;
+				if (level == 0) {
+					root = subtree;
+				} else if (path[level - 1].left == node) {
+					path[level - 1].left = subtree;
+				} else {
+					path[level - 1].right = subtree;
+				}
+				
+				if (subtree == node && node.rank == oldRank && node.red == oldRed
+						&& (policy != BalancePolicy.RED_BLACK || !node.red)) {
+					break;
+				}
+				level--;
+			}
+			
+			int ancestor = level - 1;
+			while (ancestor >= 0 && augment(path[ancestor])) {
+				ancestor--;
+			}
+			return level;
+		}
 	}
 	
 }
@@ -1,7 +1,10 @@
 package trees;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -117,7 +120,309 @@ public class AVLTreeDemo {
 		originalTree.print();
 	}
 
-	public static void main(String[] args) {
+	public static void testBalancePolicies() {
+		for (BalancePolicy policy : BalancePolicy.values()) {
+			AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>(policy);
+			for (int elem : randomList()) {
+				tree.insert(elem, elem);
+			}
+			System.out.println(policy + " tree after inserts:");
+			tree.print();
+			
+			for (int i = 0; i < NODES; i += 2) {
+				tree.remove(i);
+			}
+			System.out.println(policy + " tree after removing even keys:");
+			tree.print();
+			System.out.println("balanced? " + (tree.isBalanced() ? "yes" : "no"));
+			assert tree.size() == NODES / 2;
+		}
+	}
+
+	public static void testBufferedTree() {
+		BufferedTree<Integer, Integer> tree = new BufferedTree<Integer, Integer>(
+				new AVLTree<Integer, Integer>(), 4, 2, 0.01);
+		for (int elem : randomList()) {
+			tree.insert(elem, elem);
+		}
+		tree.remove(0);
+		tree.insert(1, 100);
+		System.out.println("Pending runs before flush: " + tree.pendingRuns());
+		assert tree.find(1) == 100;
+		assert !tree.contains(0);
+		
+		tree.flush();
+		System.out.println("Pending runs after flush: " + tree.pendingRuns());
+		tree.print();
+		System.out.println("Key-Value entries for this tree: " + tree.entries());
+		tree.close();
+	}
+
+	public static void testIntervalTree() {
+		IntervalTree<Integer, String> tree = new IntervalTree<Integer, String>();
+		tree.insert(15, 20, "a");
+		tree.insert(10, 30, "b");
+		tree.insert(17, 19, "c");
+		tree.insert(5, 20, "d");
+		tree.insert(12, 15, "e");
+		tree.insert(30, 40, "f");
+		
+		System.out.println("Intervals: " + tree.entries());
+		System.out.println("Max end point is " + tree.maxEnd());
+		System.out.println("Intervals containing 14: " + tree.stab(14));
+		System.out.print("Intervals overlapping [21, 35]:");
+		Iterator<Entry<Interval<Integer>, String>> it = tree.overlapping(21, 35);
+		while (it.hasNext()) {
+			System.out.print(" " + it.next());
+		}
+		System.out.println();
+		assert tree.stab(14).size() == 3;
+	}
+
+	public static void testMultimap() {
+		MultimapTree<Integer, String> tree = new MultimapTree<Integer, String>();
+		for (int i = 0; i < NODES; i++) {
+			tree.insertDuplicate(i % 3, "event" + i);
+		}
+		tree.removeDuplicate(0, "event3");
+		
+		System.out.println("Distinct keys: " + tree.size() + ", total values: " + tree.totalCount());
+		for (int key : tree.keys()) {
+			System.out.print("Values of " + key + " (" + tree.count(key) + "):");
+			Iterator<String> it = tree.valuesOf(key);
+			while (it.hasNext()) {
+				System.out.print(" " + it.next());
+			}
+			System.out.println();
+		}
+		System.out.println("Values below key 2: " + tree.countBelow(2));
+		assert tree.totalCount() == NODES - 1;
+	}
+
+	public static void testMerkleTree() {
+		MerkleTree<Integer, Integer> primary = new MerkleTree<Integer, Integer>(Codec.INTEGER, Codec.INTEGER);
+		MerkleTree<Integer, Integer> replica = new MerkleTree<Integer, Integer>(Codec.INTEGER, Codec.INTEGER,
+				BalancePolicy.WAVL);
+		for (int elem : randomList()) {
+			primary.insert(elem, elem);
+		}
+		for (int elem : randomList()) {
+			replica.insert(elem, elem);
+		}
+		System.out.println("Replicas in sync? " + (primary.rootDigest() == replica.rootDigest() ? "yes" : "no"));
+		
+		primary.modifyValue(3, 30);
+		primary.remove(7);
+		replica.insert(NODES, NODES);
+		List<Integer> changed = primary.diff(replica);
+		System.out.println("Replicas in sync? " + (primary.rootDigest() == replica.rootDigest() ? "yes" : "no"));
+		System.out.println("Changed keys: " + changed);
+		assert changed.size() == 3;
+	}
+	
+	public static void testMerkleHashCollision() {
+		// values whose hashCode() collides must still be told apart
+		MerkleTree<Integer, Long> longs = new MerkleTree<Integer, Long>(Codec.INTEGER, Codec.LONG);
+		MerkleTree<Integer, Long> otherLongs = new MerkleTree<Integer, Long>(Codec.INTEGER, Codec.LONG);
+		longs.insert(1, 0L);
+		otherLongs.insert(1, 0x100000001L);
+		System.out.println("Changed keys (0L vs 0x100000001L): " + longs.diff(otherLongs));
+		assert longs.diff(otherLongs).size() == 1;
+		
+		MerkleTree<Integer, String> strings = new MerkleTree<Integer, String>(Codec.INTEGER, Codec.STRING);
+		MerkleTree<Integer, String> otherStrings = new MerkleTree<Integer, String>(Codec.INTEGER, Codec.STRING);
+		strings.insert(1, "Aa");
+		otherStrings.insert(1, "BB");
+		System.out.println("Changed keys (\"Aa\" vs \"BB\"): " + strings.diff(otherStrings));
+		assert strings.diff(otherStrings).size() == 1;
+	}
+	
+	public static void testMembershipFilter() {
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		tree.enableMembershipFilter(0.01);
+		for (int elem : randomList()) {
+			tree.insert(2 * elem, elem);
+		}
+		int misses = 0;
+		for (int i = 0; i < 2 * NODES; i++) {
+			if (tree.find(2 * i + 1) == null) {
+				misses++;
+			}
+		}
+		tree.remove(0);
+		System.out.println("Misses: " + misses + ", contains removed key? " + (tree.contains(0) ? "yes" : "no"));
+		assert misses == 2 * NODES && !tree.contains(0) && tree.contains(2);
+	}
+	
+	public static void testWorkloadDriver() {
+		WorkloadDriver driver = new WorkloadDriver(new AVLTree<Integer, Integer>(), false);
+		driver.setMix(0.7, 0.1, 0.1, 0.1);
+		driver.setDistribution(KeyDistribution.ZIPFIAN);
+		driver.setThreads(2);
+		driver.load(100 * NODES);
+		WorkloadDriver.Result result = driver.run(1000 * NODES);
+		result.print(System.out);
+		assert result.operations() == 1000 * NODES;
+	}
+	
+	public static void testCursor() {
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		AVLTree<Integer, Integer>.Cursor cursor = tree.cursor();
+		// appends at the right edge never search from the root
+		for (int i = 0; i < NODES; i++) {
+			cursor.insert(i, i);
+		}
+		cursor.seek(NODES / 2);
+		cursor.setValue(-1);
+		cursor.remove();
+		
+		List<Integer> walk = new ArrayList<Integer>();
+		if (cursor.first()) {
+			do {
+				walk.add(cursor.getKey());
+			} while (cursor.next());
+		}
+		System.out.println("Cursor walk: " + walk);
+		assert walk.size() == NODES - 1 && tree.isBalanced();
+	}
+	
+	public static void testIndexedTable() {
+		// records are {id, customer, timestamp}
+		IndexedTable<Integer, int[]> orders = new IndexedTable<Integer, int[]>(new KeyExtractor<int[], Integer>() {
+			public Integer keyOf(int[] order) {
+				return order[0];
+			}
+		});
+		IndexedTable<Integer, int[]>.Index<Integer> byCustomer = orders.addIndex(new KeyExtractor<int[], Integer>() {
+			public Integer keyOf(int[] order) {
+				return order[1];
+			}
+		});
+		for (int elem : randomList()) {
+			orders.put(new int[] { elem, elem % 3, 100 * elem });
+		}
+		orders.put(new int[] { 0, 2, 0 });
+		orders.remove(1);
+		
+		List<Integer> ids = new ArrayList<Integer>();
+		Iterator<int[]> it = byCustomer.range(2, 2);
+		while (it.hasNext()) {
+			ids.add(it.next()[0]);
+		}
+		System.out.println("Orders of customer 2: " + ids);
+		assert orders.size() == NODES - 1 && byCustomer.get(0).size() == 3;
+	}
+	
+	public static void testNodePool() {
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>();
+		tree.enableNodePool(NODES);
+		for (int elem : randomList()) {
+			tree.insert(elem, elem);
+		}
+		for (int elem : randomList()) {
+			tree.remove(elem);
+			tree.insert(elem + NODES, elem);
+		}
+		System.out.println(tree.nodePool());
+		assert tree.nodePool().hits() == NODES && tree.size() == NODES;
+	}
+
+	public static void testRangeRemoval() {
+		for (BalancePolicy policy : BalancePolicy.values()) {
+			AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>(policy);
+			for (int elem : randomList()) {
+				tree.insert(elem, elem);
+			}
+			final List<Integer> archived = new ArrayList<Integer>();
+			int removed = tree.removeBelow(3, new RemovalListener<Integer, Integer>() {
+				public void removed(Integer key, Integer value) {
+					archived.add(key);
+				}
+			});
+			removed += tree.removeAbove(7);
+			removed += tree.removeRange(4, 5);
+			System.out.println(policy + ": archived " + archived + ", remaining " + tree.keys());
+			assert removed == 7 && tree.size() == 3 && tree.isBalanced();
+		}
+	}
+
+	public static void testMemoryAccounting() {
+		AVLTree<Integer, String> tree = new AVLTree<Integer, String>();
+		tree.setSizeEstimators(SizeEstimator.INTEGER, SizeEstimator.STRING);
+		final List<String> events = new ArrayList<String>();
+		tree.addMemoryThreshold(1000, new MemoryThresholdListener() {
+			public void thresholdExceeded(long threshold, long estimatedBytes) {
+				events.add("exceeded " + threshold + " at " + estimatedBytes);
+			}
+			
+			public void thresholdCleared(long threshold, long estimatedBytes) {
+				events.add("cleared " + threshold + " at " + estimatedBytes);
+			}
+		});
+		for (int elem : randomList()) {
+			tree.insert(elem, "value" + elem);
+		}
+		System.out.println(tree.memoryFootprint());
+		tree.removeBelow(NODES / 2);
+		System.out.println(tree.memoryFootprint());
+		System.out.println("Threshold events: " + events);
+		assert events.size() == 2 && tree.estimatedBytes() == tree.memoryFootprint().totalBytes();
+	}
+
+	public static void testPagedTree() throws IOException {
+		File file = File.createTempFile("paged-tree", ".db");
+		file.deleteOnExit();
+		// 128-byte pages hold a handful of entries, so the tree grows levels
+		PagedTree<Integer, String> tree = new PagedTree<Integer, String>(
+				file, Codec.INTEGER, Codec.STRING, 128, 0);
+		for (int elem : randomList()) {
+			tree.insert(elem, "value" + elem);
+		}
+		tree.remove(0);
+		tree.print();
+		tree.close();
+		
+		tree = new PagedTree<Integer, String>(file, Codec.INTEGER, Codec.STRING, 128, 0);
+		System.out.println("Key-Value entries after reopening: " + tree.entries());
+		assert tree.size() == NODES - 1 && tree.minKey() == 1;
+		assert tree.lowerKey(1) == null && "value5".equals(tree.find(5));
+		tree.close();
+	}
+	
+	public static void testPagedTreeRemovals() throws IOException {
+		File file = File.createTempFile("paged-tree", ".db");
+		file.deleteOnExit();
+		PagedTree<Integer, Integer> tree = new PagedTree<Integer, Integer>(
+				file, Codec.INTEGER, Codec.INTEGER, 128, 0);
+		int count = 20000;
+		for (int i = 0; i < count; i++) {
+			tree.insert(i, i);
+		}
+		int pages = tree.pageCount();
+		// a sliding window: drop everything but the newest key
+		for (int i = 0; i < count - 1; i++) {
+			tree.remove(i);
+		}
+		tree.close();
+		
+		// a cold buffer pool shows how many pages minKey() has to read
+		tree = new PagedTree<Integer, Integer>(file, Codec.INTEGER, Codec.INTEGER, 128, 0);
+		long reads = tree.pageReads();
+		int min = tree.minKey();
+		reads = tree.pageReads() - reads;
+		System.out.println("Min key " + min + " after removing " + (count - 1) + " keys, " + reads + " page reads");
+		assert min == count - 1 && reads <= tree.height() + 1;
+		
+		// emptied pages are reused instead of growing the file
+		for (int i = 0; i < count - 1; i++) {
+			tree.insert(i, i);
+		}
+		System.out.println("Pages after refilling: " + tree.pageCount() + " (" + pages + " before)");
+		assert tree.pageCount() <= pages;
+		tree.close();
+	}
+
+	public static void main(String[] args) throws IOException {
 		System.out.println("Testing empty tree...");
 		testEmptyTree();
 		System.out.println();
@@ -143,6 +448,66 @@ public class AVLTreeDemo {
 		System.out.println("Testing copy constructor...");
 		testCopyConstructor();
 		System.out.println();
+		
+		System.out.println("Testing balance policies...");
+		testBalancePolicies();
+		System.out.println();
+		
+		System.out.println("Testing buffered tree...");
+		testBufferedTree();
+		System.out.println();
+		
+		System.out.println("Testing interval tree...");
+		testIntervalTree();
+		System.out.println();
+		
+		System.out.println("Testing multimap...");
+		testMultimap();
+		System.out.println();
+		
+		System.out.println("Testing merkle tree...");
+		testMerkleTree();
+		System.out.println();
+		
+		System.out.println("Testing merkle hash collisions...");
+		testMerkleHashCollision();
+		System.out.println();
+		
+		System.out.println("Testing membership filter...");
+		testMembershipFilter();
+		System.out.println();
+		
+		System.out.println("Testing workload driver...");
+		testWorkloadDriver();
+		System.out.println();
+		
+		System.out.println("Testing cursor...");
+		testCursor();
+		System.out.println();
+		
+		System.out.println("Testing indexed table...");
+		testIndexedTable();
+		System.out.println();
+		
+		System.out.println("Testing node pool...");
+		testNodePool();
+		System.out.println();
+		
+		System.out.println("Testing range removal...");
+		testRangeRemoval();
+		System.out.println();
+		
+		System.out.println("Testing memory accounting...");
+		testMemoryAccounting();
+		System.out.println();
+		
+		System.out.println("Testing paged tree...");
+		testPagedTree();
+		System.out.println();
+		
+		System.out.println("Testing paged tree removals...");
+		testPagedTreeRemovals();
+		System.out.println();
 	}
 
 }
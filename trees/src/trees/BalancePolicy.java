@@ -0,0 +1,35 @@
+package trees;
+
+/**
+ * Balance policies supported by the {@link AVLTree} engine. Every policy keeps
+ * the tree height logarithmic and exposes the same {@link BinarySearchTree} API;
+ * they differ in how strictly the height is bounded and in how much work an
+ * update costs, so the policy can be chosen per workload.
+ *
+ * @see BalancePolicyBenchmark
+ */
+public enum BalancePolicy {
+
+	/**
+	 * Strict AVL height balance: sibling subtree heights differ by at most one.
+	 * Gives the shortest search paths (height at most ~1.44 logn) but a remove
+	 * may retrace and rotate all the way up to the root.
+	 */
+	AVL,
+
+	/**
+	 * Weak AVL (rank-balanced) trees: every rank difference is 1 or 2 and
+	 * leaves have rank 0. Identical to AVL under inserts only, but a remove
+	 * performs at most two rotations, trading slightly taller trees after
+	 * deletions (height at most 2logn) for cheaper updates.
+	 */
+	WAVL,
+
+	/**
+	 * Left-leaning red-black trees: no two red links in a row and a perfect
+	 * black balance. Height at most 2logn, with color flips absorbing most of
+	 * the rebalancing work of an update.
+	 */
+	RED_BLACK
+
+}
@@ -0,0 +1,85 @@
+package trees;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the {@link BalancePolicy} modes of {@link AVLTree} on the same
+ * workloads: a bulk load, a delete-heavy churn phase (remove a random key,
+ * insert a fresh one) and a lookup phase. Reports nanoseconds per operation
+ * and the resulting tree height for each policy.
+ *
+ * Usage: java trees.BalancePolicyBenchmark [keys] [rounds]
+ */
+public class BalancePolicyBenchmark {
+
+	public static final int DEFAULT_KEYS = 200000;
+	public static final int DEFAULT_ROUNDS = 5;
+
+	private static final long SEED = 42;
+
+	// keeps the JIT from discarding lookups
+	private static volatile long sink;
+
+	public static void run(BalancePolicy policy, int keys, boolean report) {
+		Random random = new Random(SEED);
+		List<Integer> order = new ArrayList<Integer>(keys);
+		for (int i = 0; i < keys; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+
+		AVLTree<Integer, Integer> tree = new AVLTree<Integer, Integer>(policy);
+
+		long start = System.nanoTime();
+		for (int key : order) {
+			tree.insert(key, key);
+		}
+		long insertNanos = System.nanoTime() - start;
+
+		// churn: remove a live key and insert a new one, keeping size constant
+		int nextKey = keys;
+		start = System.nanoTime();
+		for (int i = 0; i < keys; i++) {
+			int slot = random.nextInt(keys);
+			tree.remove(order.get(slot));
+			order.set(slot, nextKey);
+			tree.insert(nextKey, nextKey);
+			nextKey++;
+		}
+		long churnNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < keys; i++) {
+			int key = order.get(random.nextInt(keys));
+			sink += tree.find(key);
+		}
+		long findNanos = System.nanoTime() - start;
+
+		if (report) {
+			System.out.printf("%-10s insert %7.1f ns/op   churn %7.1f ns/op   find %7.1f ns/op   height %d%n",
+					policy, (double) insertNanos / keys, (double) churnNanos / (2 * keys),
+					(double) findNanos / keys, tree.height());
+		}
+	}
+
+	public static void main(String[] args) {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_KEYS;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+		System.out.println("Warming up...");
+		for (BalancePolicy policy : BalancePolicy.values()) {
+			run(policy, keys / 4, false);
+		}
+
+		for (int round = 1; round <= rounds; round++) {
+			System.out.println("Round " + round + " (" + keys + " keys)");
+			for (BalancePolicy policy : BalancePolicy.values()) {
+				run(policy, keys, true);
+			}
+		}
+	}
+
+}
@@ -19,7 +19,8 @@ public interface BinarySearchTree<K extends Comparable<? super K>, V> {
 	/**
 	 * Performs lookup operation for binary search tree.
 	 * @param key The key to search.
-	 * @return The matching value for key.
+	 * @return The matching value for key, or null if the tree does not 
+	 * contain key.
 	 */
 	public V find(K key);
 	
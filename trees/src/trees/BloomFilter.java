@@ -0,0 +1,128 @@
+package trees;
+
+/**
+ * A Bloom filter is a compact, probabilistic set used to rule out lookups
+ * for absent elements. mightContain() never returns false for an element that
+ * was added, but may return true for one that was not with a configurable
+ * false positive rate. Elements cannot be removed.
+ *
+ * Elements are hashed with their hashCode(), so equal elements must have
+ * equal hash codes.
+ *
+ * @param <T> The element type of the filter.
+ */
+public class BloomFilter<T> {
+	private final long[] bits;
+	private final int numBits;
+	private final int numHashes;
+
+	/**
+	 * Creates a filter sized for the expected number of elements.
+	 * @param expectedElements The number of elements expected to be added.
+	 * @param falsePositiveRate The target false positive rate, in (0, 1).
+	 * @throws IllegalArgumentException If falsePositiveRate is not in (0, 1).
+	 */
+	public BloomFilter(int expectedElements, double falsePositiveRate) {
+		numBits = optimalBits(expectedElements, falsePositiveRate);
+		numHashes = optimalHashes(expectedElements, numBits);
+		bits = new long[(numBits + 63) >>> 6];
+	}
+
+	/**
+	 * Adds an element to the filter.
+	 * @param element The element to add.
+	 */
+	public void add(T element) {
+		long hash = hash(element);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = index(h1 + i * h2, numBits);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Checks if the element may have been added to the filter.
+	 * @param element The element to check.
+	 * @return false if the element was definitely never added; true otherwise.
+	 */
+	public boolean mightContain(T element) {
+		long hash = hash(element);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = index(h1 + i * h2, numBits);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all elements from the filter.
+	 */
+	public void clear() {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of bits used by the filter.
+	 * @return The size of the filter in bits.
+	 */
+	public int bitSize() {
+		return numBits;
+	}
+
+	/**
+	 * Returns the number of hash functions applied per element.
+	 * @return The number of hash functions.
+	 */
+	public int hashCount() {
+		return numHashes;
+	}
+
+	/* Package-Private Methods */
+
+	/*
+	 * Spreads the element's hashCode() over 64 bits (MurmurHash3 finalizer)
+	 * so the two halves can drive double hashing.
+	 */
+	static long hash(Object element) {
+		long h = element.hashCode() * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// maps a 32-bit hash onto [0, size) with a multiply instead of a division
+	static int index(int combinedHash, int size) {
+		return (int) (((combinedHash & 0xFFFFFFFFL) * size) >>> 32);
+	}
+
+	static int optimalBits(int expectedElements, double falsePositiveRate) {
+		checkRate(falsePositiveRate);
+		int n = Math.max(1, expectedElements);
+		double bits = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		return (int) Math.max(64, Math.min(Integer.MAX_VALUE - 64, Math.ceil(bits)));
+	}
+
+	// rejects rates outside (0, 1), NaN included, which would size no sane filter
+	static void checkRate(double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("False positive rate " + falsePositiveRate + " is not in (0, 1).");
+		}
+	}
+
+	static int optimalHashes(int expectedElements, int numBits) {
+		int n = Math.max(1, expectedElements);
+		return Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+	}
+
+}
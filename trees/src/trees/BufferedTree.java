@@ -0,0 +1,661 @@
+package trees;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A write-optimized front-end over an {@link AVLTree} in the style of a
+ * log-structured merge tree. Writes go to a small in-memory hash buffer; when
+ * the buffer fills it is sorted and frozen into an immutable run. A background
+ * thread merges runs of similar size with each other and, once they hold a
+ * sizable fraction of the main tree, merges them into it with
+ * {@link AVLTree#merge}: a single linear-time pass instead of one search and
+ * rebalance per key.
+ *
+ * Lookups consult the buffer, then the runs from newest to oldest (skipping
+ * runs whose Bloom filter rules the key out), then the main tree. Removes are
+ * recorded as tombstones that are applied at merge time. Ordered and
+ * aggregate queries (size(), keys(), lowerKey(), ...) flush all pending
+ * writes first and then answer from the main tree.
+ *
+ * Unlike {@link AVLTree#insert}, insert() is a blind write: it does not look
+ * up the key first, and inserting an existing key replaces its value.
+ *
+ * The tree is safe for concurrent use. Call close() to stop the merge thread.
+ *
+ * @param <K> A comparable key type for tree nodes.
+ * @param <V> A value type for tree nodes.
+ */
+public class BufferedTree<K extends Comparable<? super K>, V> implements BinarySearchTree<K,V>, Closeable {
+
+	public static final int DEFAULT_BUFFER_CAPACITY = 4096;
+	public static final int DEFAULT_MAX_RUNS = 16;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	// runs are merged into the main tree once they hold 1/MERGE_RATIO of it
+	private static final int MERGE_RATIO = 4;
+
+	// marks a removed key in the buffer and runs until it is merged
+	private static final Object TOMBSTONE = new Object();
+
+	private final AVLTree<K,V> main;
+	// unsorted until frozen, so a write is a single hash insert
+	private final Map<K,Object> buffer;
+	// frozen buffers waiting to be merged, newest first
+	private final List<SortedRun<K>> runs;
+
+	private final int bufferCapacity;
+	private final int maxRuns;
+	private final double falsePositiveRate;
+
+	private final ReadWriteLock bufferLock;
+	private final ReadWriteLock mainLock;
+	private final Lock mergeLock;
+	private final ExecutorService merger;
+	private final Runnable mergeTask;
+
+	public BufferedTree() {
+		this(new AVLTree<K,V>(), DEFAULT_BUFFER_CAPACITY, DEFAULT_MAX_RUNS, DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * Creates a buffered tree over main.
+	 * @param main The tree that merged writes end up in. It must not be
+	 * modified directly while in use by this tree.
+	 * @param bufferCapacity The number of keys the write buffer holds before
+	 * it is frozen into a sorted run.
+	 * @param maxRuns The number of unmerged runs after which they are merged
+	 * into the main tree, by the writing thread rather than in the background.
+	 * @param falsePositiveRate The Bloom filter false positive rate for runs;
+	 * 0 disables the filters.
+	 */
+	public BufferedTree(AVLTree<K,V> main, int bufferCapacity, int maxRuns, double falsePositiveRate) {
+		this.main = main;
+		this.bufferCapacity = bufferCapacity;
+		this.maxRuns = maxRuns;
+		this.falsePositiveRate = falsePositiveRate;
+		buffer = new HashMap<K,Object>();
+		runs = new CopyOnWriteArrayList<SortedRun<K>>();
+		bufferLock = new ReentrantReadWriteLock();
+		mainLock = new ReentrantReadWriteLock();
+		mergeLock = new ReentrantLock();
+
+		merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "BufferedTree-merger");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mergeTask = new Runnable() {
+			public void run() {
+				compact(false);
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	public V find(K key) {
+		Object value = lookup(key);
+		return value == TOMBSTONE ? null : (V) value;
+	}
+
+	public void insert(K key, V value) {
+		put(key, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(K key) {
+		Object oldVal;
+		boolean frozen;
+		// no other write may come between the lookup and the tombstone
+		bufferLock.writeLock().lock();
+		try {
+			oldVal = lookup(key);
+			if (oldVal == TOMBSTONE) {
+				return null;
+			}
+			frozen = write(key, TOMBSTONE);
+		} finally {
+			bufferLock.writeLock().unlock();
+		}
+		written(frozen);
+		return (V) oldVal;
+	}
+
+	public void modifyValue(K key, V newValue) {
+		boolean frozen;
+		bufferLock.writeLock().lock();
+		try {
+			if (lookup(key) == TOMBSTONE) {
+				return;
+			}
+			frozen = write(key, newValue);
+		} finally {
+			bufferLock.writeLock().unlock();
+		}
+		written(frozen);
+	}
+
+	public boolean contains(K key) {
+		return lookup(key) != TOMBSTONE;
+	}
+
+	public void clear() {
+		mergeLock.lock();
+		bufferLock.writeLock().lock();
+		mainLock.writeLock().lock();
+		try {
+			buffer.clear();
+			runs.clear();
+			main.clear();
+		} finally {
+			mainLock.writeLock().unlock();
+			bufferLock.writeLock().unlock();
+			mergeLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if the tree holds no entries. Unlike size() this does not flush
+	 * unless it must: a pending insert not shadowed by a later remove proves
+	 * the tree non-empty, and an empty main tree with nothing but removals
+	 * pending proves it empty. Only when every pending write is a removal
+	 * against a non-empty main tree does it flush to find out.
+	 * @return true if the tree is empty; false otherwise.
+	 */
+	public boolean isEmpty() {
+		boolean removals;
+		bufferLock.readLock().lock();
+		try {
+			// the buffer holds the newest write of each of its keys
+			for (Object value : buffer.values()) {
+				if (value != TOMBSTONE) {
+					return false;
+				}
+			}
+			removals = !buffer.isEmpty();
+		} finally {
+			bufferLock.readLock().unlock();
+		}
+		
+		// a run frozen after the buffer was read is in this snapshot
+		for (SortedRun<K> run : runs) {
+			for (int i = 0; i < run.keys.size(); i++) {
+				// a newer remove may shadow an insert in an older run
+				if (run.values.get(i) != TOMBSTONE && lookup(run.keys.get(i)) != TOMBSTONE) {
+					return false;
+				}
+			}
+			removals |= !run.keys.isEmpty();
+		}
+		
+		mainLock.readLock().lock();
+		try {
+			if (main.isEmpty()) {
+				return true;
+			} else if (!removals) {
+				return false;
+			}
+		} finally {
+			mainLock.readLock().unlock();
+		}
+		// the pending removals may or may not empty the main tree
+		return size() == 0;
+	}
+
+	public boolean isBalanced() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.isBalanced();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of entries. Removes are blind tombstones, so the 
+	 * count is only known once they are applied: this flushes all pending 
+	 * writes first and costs a merge into the main tree whenever any are
+	 * pending. Prefer isEmpty() to test for emptiness.
+	 * @return The number of entries in the tree.
+	 */
+	public int size() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.size();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public int height() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.height();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public void print() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			main.print();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public List<K> keys() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.keys();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public List<V> values() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.values();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public List<Entry<K,V>> entries() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.entries();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public List<List<K>> levelOrderKeys() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.levelOrderKeys();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public List<List<Entry<K,V>>> levelOrderEntries() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.levelOrderEntries();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public K lowerKey(K key) {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.lowerKey(key);
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public Entry<K,V> lowerEntry(K key) {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.lowerEntry(key);
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public K higherKey(K key) {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.higherKey(key);
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public Entry<K,V> higherEntry(K key) {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.higherEntry(key);
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public K minKey() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.minKey();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public K maxKey() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.maxKey();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public Entry<K,V> minEntry() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.minEntry();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	public Entry<K,V> maxEntry() {
+		flush();
+		mainLock.readLock().lock();
+		try {
+			return main.maxEntry();
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Freezes the write buffer and merges every pending run into the main
+	 * tree before returning.
+	 */
+	public void flush() {
+		bufferLock.writeLock().lock();
+		try {
+			freeze();
+		} finally {
+			bufferLock.writeLock().unlock();
+		}
+		compact(true);
+	}
+
+	/**
+	 * Returns the number of frozen runs not yet merged into the main tree.
+	 * @return The number of pending runs.
+	 */
+	public int pendingRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Flushes pending writes and stops the background merge thread. The tree
+	 * remains usable, but further runs are merged by the writing threads.
+	 */
+	public void close() {
+		flush();
+		merger.shutdown();
+		try {
+			merger.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Private Methods */
+
+	/*
+	 * Returns the newest value recorded for key, or TOMBSTONE if the key is
+	 * absent or removed. Runs are published before the buffer is cleared and
+	 * retired only after the main tree holds their entries, so a key is
+	 * always visible in at least one of the three places. Merges never change
+	 * the newest value of a key, so a caller holding the buffer write lock
+	 * gets a result that stays current until it releases the lock.
+	 */
+	private Object lookup(K key) {
+		bufferLock.readLock().lock();
+		try {
+			Object value = buffer.get(key);
+			if (value != null || buffer.containsKey(key)) {
+				return value;
+			}
+		} finally {
+			bufferLock.readLock().unlock();
+		}
+
+		for (SortedRun<K> run : runs) {
+			if (run.filter != null && !run.filter.mightContain(key)) {
+				continue;
+			}
+			int index = Collections.binarySearch(run.keys, key);
+			if (index >= 0) {
+				return run.values.get(index);
+			}
+		}
+
+		mainLock.readLock().lock();
+		try {
+			if (main.contains(key)) {
+				return main.find(key);
+			}
+			return TOMBSTONE;
+		} finally {
+			mainLock.readLock().unlock();
+		}
+	}
+
+	private void put(K key, Object value) {
+		boolean frozen;
+		bufferLock.writeLock().lock();
+		try {
+			frozen = write(key, value);
+		} finally {
+			bufferLock.writeLock().unlock();
+		}
+		written(frozen);
+	}
+
+	// must hold the buffer write lock; returns true if the buffer was frozen
+	private boolean write(K key, Object value) {
+		buffer.put(key, value);
+		if (buffer.size() >= bufferCapacity) {
+			freeze();
+			return true;
+		}
+		return false;
+	}
+
+	// schedules a merge after a write froze the buffer; must not hold its lock
+	private void written(boolean frozen) {
+		if (frozen) {
+			if (runs.size() > maxRuns || merger.isShutdown()) {
+				// apply back pressure rather than letting runs pile up
+				compact(false);
+			} else {
+				merger.execute(mergeTask);
+			}
+		}
+	}
+
+	// must hold the buffer write lock
+	private void freeze() {
+		if (buffer.isEmpty()) {
+			return;
+		}
+
+		List<K> keys = new ArrayList<K>(buffer.keySet());
+		Collections.sort(keys);
+		List<Object> values = new ArrayList<Object>(keys.size());
+		for (K key : keys) {
+			values.add(buffer.get(key));
+		}
+
+		synchronized (runs) {
+			runs.add(0, new SortedRun<K>(keys, values, SortedRun.filter(keys, falsePositiveRate)));
+		}
+		buffer.clear();
+	}
+
+	/*
+	 * Size-tiered compaction. Adjacent runs of similar size are merged with
+	 * each other, so every entry takes part in O(log n) run merges. Runs are
+	 * merged into the main tree, which costs a pass over the whole tree, 
+	 * only once they hold a sizable fraction of it (or when forced or too 
+	 * many runs are pending).
+	 */
+	private void compact(boolean force) {
+		mergeLock.lock();
+		try {
+			while (!runs.isEmpty()) {
+				List<SortedRun<K>> pending = new ArrayList<SortedRun<K>>(runs);
+				long pendingEntries = 0;
+				for (SortedRun<K> run : pending) {
+					pendingEntries += run.keys.size();
+				}
+				if (force || pending.size() > maxRuns || pendingEntries * MERGE_RATIO >= main.size()) {
+					mergeIntoMain(pending);
+					return;
+				}
+				
+				int i = 0;
+				while (i + 1 < pending.size() && 2 * pending.get(i).keys.size() <= pending.get(i + 1).keys.size()) {
+					i++;
+				}
+				if (i + 1 == pending.size()) {
+					return;
+				}
+				
+				SortedRun<K> newer = pending.get(i);
+				SortedRun<K> older = pending.get(i + 1);
+				SortedRun<K> combined = SortedRun.merge(older, newer, falsePositiveRate);
+				synchronized (runs) {
+					// publish the combined run before retiring its inputs
+					runs.set(runs.indexOf(older), combined);
+					runs.remove(newer);
+				}
+			}
+		} finally {
+			mergeLock.unlock();
+		}
+	}
+
+	// must hold the merge lock
+	@SuppressWarnings("unchecked")
+	private void mergeIntoMain(List<SortedRun<K>> pending) {
+		SortedRun<K> combined = pending.get(pending.size() - 1);
+		for (int i = pending.size() - 2; i >= 0; i--) {
+			combined = SortedRun.merge(combined, pending.get(i), 0);
+		}
+		
+		List<Entry<K,V>> upserts = new ArrayList<Entry<K,V>>(combined.keys.size());
+		List<K> removals = new ArrayList<K>();
+		for (int i = 0; i < combined.keys.size(); i++) {
+			Object value = combined.values.get(i);
+			if (value == TOMBSTONE) {
+				removals.add(combined.keys.get(i));
+			} else {
+				upserts.add(new AbstractMap.SimpleEntry<K,V>(combined.keys.get(i), (V) value));
+			}
+		}
+		
+		mainLock.writeLock().lock();
+		try {
+			main.merge(upserts, removals);
+			runs.removeAll(pending);
+		} finally {
+			mainLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * An immutable, sorted snapshot of the write buffer. Values are either
+	 * of the tree's value type or TOMBSTONE.
+	 */
+	private static class SortedRun<K extends Comparable<? super K>> {
+		private final List<K> keys;
+		private final List<Object> values;
+		private final BloomFilter<K> filter;
+
+		public SortedRun(List<K> keys, List<Object> values, BloomFilter<K> filter) {
+			this.keys = keys;
+			this.values = values;
+			this.filter = filter;
+		}
+
+		/*
+		 * Merges two runs; entries of newer replace those of older. The 
+		 * result gets a Bloom filter unless falsePositiveRate is 0.
+		 */
+		public static <K extends Comparable<? super K>> SortedRun<K> merge(SortedRun<K> older, 
+				SortedRun<K> newer, double falsePositiveRate) {
+			int size = older.keys.size() + newer.keys.size();
+			List<K> keys = new ArrayList<K>(size);
+			List<Object> values = new ArrayList<Object>(size);
+			int i = 0, j = 0;
+			while (i < older.keys.size() || j < newer.keys.size()) {
+				int cmp;
+				if (i == older.keys.size()) {
+					cmp = 1;
+				} else if (j == newer.keys.size()) {
+					cmp = -1;
+				} else {
+					cmp = older.keys.get(i).compareTo(newer.keys.get(j));
+				}
+
+				if (cmp < 0) {
+					keys.add(older.keys.get(i));
+					values.add(older.values.get(i++));
+				} else {
+					if (cmp == 0) {
+						i++;
+					}
+					keys.add(newer.keys.get(j));
+					values.add(newer.values.get(j++));
+				}
+			}
+			return new SortedRun<K>(keys, values, filter(keys, falsePositiveRate));
+		}
+		
+		public static <K> BloomFilter<K> filter(List<K> keys, double falsePositiveRate) {
+			if (falsePositiveRate <= 0) {
+				return null;
+			}
+			BloomFilter<K> filter = new BloomFilter<K>(keys.size(), falsePositiveRate);
+			for (K key : keys) {
+				filter.add(key);
+			}
+			return filter;
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package trees;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Converts keys or values to and from bytes, so that {@link PagedTree} can
+ * store them in pages on disk and {@link MerkleTree} can hash their content.
+ * Codecs for common types are provided as constants.
+ *
+ * @param <T> The type of the encoded objects.
+ */
+public interface Codec<T> {
+	
+	/**
+	 * Returns the number of bytes write() uses for an object.
+	 * @param object The object to measure.
+	 * @return The encoded size of object in bytes.
+	 */
+	public int size(T object);
+	
+	/**
+	 * Writes an object at the buffer's position, advancing it by size(object).
+	 * @param object The object to encode.
+	 * @param buffer The buffer to write to.
+	 */
+	public void write(T object, ByteBuffer buffer);
+	
+	/**
+	 * Reads an object written by write() at the buffer's position, advancing
+	 * the position past it.
+	 * @param buffer The buffer to read from.
+	 * @return The decoded object.
+	 */
+	public T read(ByteBuffer buffer);
+	
+	public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+		public int size(Integer object) {
+			return 4;
+		}
+		
+		public void write(Integer object, ByteBuffer buffer) {
+			buffer.putInt(object);
+		}
+		
+		public Integer read(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+	};
+	
+	public static final Codec<Long> LONG = new Codec<Long>() {
+		public int size(Long object) {
+			return 8;
+		}
+		
+		public void write(Long object, ByteBuffer buffer) {
+			buffer.putLong(object);
+		}
+		
+		public Long read(ByteBuffer buffer) {
+			return buffer.getLong();
+		}
+	};
+	
+	// a 4-byte length followed by the UTF-8 bytes of the string
+	public static final Codec<String> STRING = new Codec<String>() {
+		private final Charset utf8 = Charset.forName("UTF-8");
+		
+		public int size(String object) {
+			int bytes = 0;
+			for (int i = 0; i < object.length(); i++) {
+				char c = object.charAt(i);
+				if (c < 0x80) {
+					bytes += 1;
+				} else if (c < 0x800) {
+					bytes += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < object.length()
+						&& Character.isLowSurrogate(object.charAt(i + 1))) {
+					bytes += 4;
+					i++;
+				} else {
+					bytes += 3;
+				}
+			}
+			return 4 + bytes;
+		}
+		
+		public void write(String object, ByteBuffer buffer) {
+			byte[] bytes = object.getBytes(utf8);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+		
+		public String read(ByteBuffer buffer) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return new String(bytes, utf8);
+		}
+	};
+	
+}
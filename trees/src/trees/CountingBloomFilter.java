@@ -0,0 +1,133 @@
+package trees;
+
+/**
+ * A Bloom filter with 4-bit counters instead of bits, so that elements can be
+ * removed as well as added. Like {@link BloomFilter}, mightContain() never
+ * returns false for an element that is in the filter.
+ *
+ * A counter that reaches its maximum sticks there, since it can no longer
+ * tell how many elements map to it; removes leave it alone to avoid false
+ * negatives. isSaturated() reports this so the owner can rebuild the filter.
+ * Only elements that were added may be removed.
+ *
+ * @param <T> The element type of the filter.
+ */
+public class CountingBloomFilter<T> {
+	private static final int COUNTER_BITS = 4;
+	private static final int COUNTERS_PER_WORD = 64 / COUNTER_BITS;
+	private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+	
+	private final long[] counters;
+	private final int numCounters;
+	private final int numHashes;
+	private int saturated;
+	
+	/**
+	 * Creates a filter sized for the expected number of elements.
+	 * @param expectedElements The number of elements expected to be present.
+	 * @param falsePositiveRate The target false positive rate, in (0, 1).
+	 * @throws IllegalArgumentException If falsePositiveRate is not in (0, 1).
+	 */
+	public CountingBloomFilter(int expectedElements, double falsePositiveRate) {
+		numCounters = BloomFilter.optimalBits(expectedElements, falsePositiveRate);
+		numHashes = BloomFilter.optimalHashes(expectedElements, numCounters);
+		counters = new long[(numCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD];
+		saturated = 0;
+	}
+	
+	/**
+	 * Adds an element to the filter.
+	 * @param element The element to add.
+	 */
+	public void add(T element) {
+		long hash = BloomFilter.hash(element);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int index = BloomFilter.index(h1 + i * h2, numCounters);
+			long count = get(index);
+			if (count < MAX_COUNT) {
+				set(index, count + 1);
+				if (count + 1 == MAX_COUNT) {
+					saturated++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Removes one occurrence of an element previously added to the filter.
+	 * @param element The element to remove.
+	 */
+	public void remove(T element) {
+		long hash = BloomFilter.hash(element);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int index = BloomFilter.index(h1 + i * h2, numCounters);
+			long count = get(index);
+			if (count > 0 && count < MAX_COUNT) {
+				set(index, count - 1);
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the element may be in the filter.
+	 * @param element The element to check.
+	 * @return false if the element is definitely not in the filter; true otherwise.
+	 */
+	public boolean mightContain(T element) {
+		long hash = BloomFilter.hash(element);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			if (get(BloomFilter.index(h1 + i * h2, numCounters)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks if any counter has saturated. Saturated counters never decrease,
+	 * so the false positive rate slowly degrades until the filter is rebuilt.
+	 * @return true if at least one counter is stuck at its maximum.
+	 */
+	public boolean isSaturated() {
+		return saturated > 0;
+	}
+	
+	/**
+	 * Returns the estimated heap size of the filter, see {@link MemoryFootprint}.
+	 * @return The bytes of the filter object and its counters.
+	 */
+	public long estimatedBytes() {
+		long object = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + MemoryFootprint.REFERENCE + 3 * 4);
+		return object + MemoryFootprint.arrayBytes(counters.length, 8);
+	}
+	
+	/**
+	 * Removes all elements from the filter.
+	 */
+	public void clear() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = 0;
+		}
+		saturated = 0;
+	}
+	
+	/* Private Methods */
+	
+	private long get(int index) {
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		return (counters[index / COUNTERS_PER_WORD] >>> shift) & MAX_COUNT;
+	}
+	
+	private void set(int index, long count) {
+		int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+		int word = index / COUNTERS_PER_WORD;
+		counters[word] = (counters[word] & ~(MAX_COUNT << shift)) | (count << shift);
+	}
+	
+}
@@ -0,0 +1,422 @@
+package trees;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A table of records stored once in a primary {@link AVLTree} keyed by
+ * primary key, with any number of secondary indexes over other keys of the
+ * records. A secondary index is an AVLTree keyed by the pair (secondary key,
+ * primary key), so duplicate secondary keys stay distinct and ordered, and
+ * its values are references to the same record objects as the primary
+ * tree's: a range query on an index streams records without a lookup in the
+ * primary tree, and an index costs a node and a key pair per record rather
+ * than a copy of every record.
+ *
+ * put() and remove() change the primary tree and every index under one
+ * write lock, so readers never observe a record in some indexes but not
+ * others. Records must not be modified in place while in the table in ways
+ * that change their keys; put a new record with the same primary key
+ * instead.
+ *
+ * Range iterators are weakly consistent: each step reads the table under
+ * the read lock and resumes after the last record returned, so an iterator
+ * never throws because of concurrent updates and reflects the updates that
+ * happened before each step.
+ *
+ * @param <PK> A comparable primary key type.
+ * @param <R> A record type.
+ */
+public class IndexedTable<PK extends Comparable<? super PK>, R> {
+	private final KeyExtractor<R,PK> primaryKey;
+	private final BalancePolicy policy;
+	private final AVLTree<PK,R> primary;
+	private final List<Index<?>> indexes;
+	private final ReadWriteLock lock;
+	
+	public IndexedTable(KeyExtractor<R,PK> primaryKey) {
+		this(primaryKey, BalancePolicy.AVL);
+	}
+	
+	/**
+	 * Creates an empty table.
+	 * @param primaryKey Extracts the unique primary key of a record.
+	 * @param policy The balance policy of the primary tree and every index.
+	 */
+	public IndexedTable(KeyExtractor<R,PK> primaryKey, BalancePolicy policy) {
+		this.primaryKey = primaryKey;
+		this.policy = policy;
+		primary = new AVLTree<PK,R>(policy);
+		indexes = new ArrayList<Index<?>>();
+		lock = new ReentrantReadWriteLock();
+	}
+	
+	/**
+	 * Adds a secondary index and builds it from the records already in the
+	 * table in a single linear pass after sorting.
+	 * @param secondaryKey Extracts the indexed key of a record. Several
+	 * records may share a secondary key.
+	 * @return A handle for querying the new index.
+	 */
+	public <S extends Comparable<? super S>> Index<S> addIndex(KeyExtractor<R,S> secondaryKey) {
+		lock.writeLock().lock();
+		try {
+			Index<S> index = new Index<S>(secondaryKey);
+			if (!primary.isEmpty()) {
+				index.build(primary.entries());
+			}
+			indexes.add(index);
+			return index;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Stores a record, replacing any record with the same primary key, and
+	 * updates every index.
+	 * @param record The record to store.
+	 * @return The replaced record, or null if there was none.
+	 */
+	public R put(R record) {
+		// extract every key up front so a failing extractor changes nothing
+		PK key = primaryKey.keyOf(record);
+		if (key == null) {
+			throw new IllegalArgumentException("Primary key of record " + record + " is null.");
+		}
+		lock.writeLock().lock();
+		try {
+			R old = primary.find(key);
+			List<Object> oldKeys = new ArrayList<Object>(indexes.size());
+			List<Object> newKeys = new ArrayList<Object>(indexes.size());
+			for (Index<?> index : indexes) {
+				oldKeys.add(old == null ? null : index.extract(old));
+				newKeys.add(index.extract(record));
+			}
+			
+			if (old == null) {
+				primary.insert(key, record);
+			} else {
+				primary.modifyValue(key, record);
+			}
+			for (int i = 0; i < indexes.size(); i++) {
+				indexes.get(i).replace(key, oldKeys.get(i), record, newKeys.get(i));
+			}
+			return old;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes the record with the given primary key from the table and every
+	 * index.
+	 * @param key The primary key of the record to remove.
+	 * @return The removed record, or null if there was none.
+	 */
+	public R remove(PK key) {
+		lock.writeLock().lock();
+		try {
+			R old = primary.find(key);
+			if (old == null) {
+				return null;
+			}
+			List<Object> oldKeys = new ArrayList<Object>(indexes.size());
+			for (Index<?> index : indexes) {
+				oldKeys.add(index.extract(old));
+			}
+			
+			for (int i = 0; i < indexes.size(); i++) {
+				indexes.get(i).replace(key, oldKeys.get(i), null, null);
+			}
+			primary.remove(key);
+			return old;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Retrieves a record by primary key.
+	 * @param key The primary key to look up.
+	 * @return The matching record, or null if there is none.
+	 */
+	public R get(PK key) {
+		lock.readLock().lock();
+		try {
+			return primary.find(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Streams the records with primary keys in [lo, hi] in primary key order.
+	 * @param lo The inclusive lower bound, or null for no lower bound.
+	 * @param hi The inclusive upper bound, or null for no upper bound.
+	 * @return A weakly consistent iterator over the records in the range.
+	 */
+	public Iterator<R> range(PK lo, final PK hi) {
+		return new RangeIterator<PK>(primary, lo) {
+			protected boolean beyond(PK key) {
+				return hi != null && key.compareTo(hi) > 0;
+			}
+		};
+	}
+	
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return primary.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	/**
+	 * Removes every record from the table and its indexes. The indexes
+	 * remain registered.
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			primary.clear();
+			for (Index<?> index : indexes) {
+				index.tree.clear();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * A secondary index of the table, created by addIndex().
+	 *
+	 * @param <S> A comparable secondary key type.
+	 */
+	public class Index<S extends Comparable<? super S>> {
+		private final KeyExtractor<R,S> secondaryKey;
+		private final AVLTree<IndexKey<S,PK>,R> tree;
+		
+		private Index(KeyExtractor<R,S> secondaryKey) {
+			this.secondaryKey = secondaryKey;
+			tree = new AVLTree<IndexKey<S,PK>,R>(policy);
+		}
+		
+		/**
+		 * Streams the records with secondary keys in [lo, hi], ordered by
+		 * secondary key and then by primary key.
+		 * @param lo The inclusive lower bound, or null for no lower bound.
+		 * @param hi The inclusive upper bound, or null for no upper bound.
+		 * @return A weakly consistent iterator over the records in the range.
+		 */
+		public Iterator<R> range(S lo, final S hi) {
+			IndexKey<S,PK> start = lo == null ? null : new IndexKey<S,PK>(lo, null);
+			return new RangeIterator<IndexKey<S,PK>>(tree, start) {
+				protected boolean beyond(IndexKey<S,PK> key) {
+					return hi != null && key.secondary.compareTo(hi) > 0;
+				}
+			};
+		}
+		
+		/**
+		 * Retrieves every record with the given secondary key.
+		 * @param key The secondary key to look up.
+		 * @return A list of the matching records ordered by primary key.
+		 */
+		public List<R> get(S key) {
+			List<R> records = new ArrayList<R>();
+			Iterator<R> it = range(key, key);
+			while (it.hasNext()) {
+				records.add(it.next());
+			}
+			return records;
+		}
+		
+		/**
+		 * Returns the number of entries in the index, which is the number of
+		 * records in the table.
+		 * @return The size of the index.
+		 */
+		public int size() {
+			lock.readLock().lock();
+			try {
+				return tree.size();
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		
+		/* Private Methods */
+		
+		private S extract(R record) {
+			S key = secondaryKey.keyOf(record);
+			if (key == null) {
+				throw new IllegalArgumentException("Secondary key of record " + record + " is null.");
+			}
+			return key;
+		}
+		
+		/*
+		 * Moves the entry of the record with the given primary key from its
+		 * old secondary key to the new one, both extracted by the caller 
+		 * before the table changed. oldKey or record may be null to insert or
+		 * remove an entry.
+		 */
+		@SuppressWarnings("unchecked")
+		private void replace(PK primaryKey, Object oldKey, R record, Object newKey) {
+			if (oldKey != null) {
+				IndexKey<S,PK> oldEntry = new IndexKey<S,PK>((S) oldKey, primaryKey);
+				if (record != null && ((S) newKey).compareTo((S) oldKey) == 0) {
+					tree.modifyValue(oldEntry, record);
+					return;
+				}
+				tree.remove(oldEntry);
+			}
+			if (record != null) {
+				tree.insert(new IndexKey<S,PK>((S) newKey, primaryKey), record);
+			}
+		}
+		
+		// loads the index from the primary entries, which are unique by primary key
+		private void build(List<Entry<PK,R>> records) {
+			List<Entry<IndexKey<S,PK>,R>> entries = new ArrayList<Entry<IndexKey<S,PK>,R>>(records.size());
+			for (Entry<PK,R> record : records) {
+				IndexKey<S,PK> key = new IndexKey<S,PK>(extract(record.getValue()), record.getKey());
+				entries.add(new AbstractMap.SimpleEntry<IndexKey<S,PK>,R>(key, record.getValue()));
+			}
+			Collections.sort(entries, new Comparator<Entry<IndexKey<S,PK>,R>>() {
+				public int compare(Entry<IndexKey<S,PK>,R> a, Entry<IndexKey<S,PK>,R> b) {
+					return a.getKey().compareTo(b.getKey());
+				}
+			});
+			tree.merge(entries, Collections.<IndexKey<S,PK>>emptyList());
+		}
+	}
+	
+	/* Private Methods */
+	
+	/*
+	 * Walks a tree from start with a cursor, taking the read lock for each
+	 * step. If the tree changed since the previous step the cursor is stale,
+	 * and the walk seeks back to the last key it returned and continues after
+	 * it.
+	 */
+	private abstract class RangeIterator<K extends Comparable<? super K>> implements Iterator<R> {
+		private final AVLTree<K,R> tree;
+		private final K start;
+		private AVLTree<K,R>.Cursor cursor;
+		private K last;
+		private R next;
+		
+		public RangeIterator(AVLTree<K,R> tree, K start) {
+			this.tree = tree;
+			this.start = start;
+			cursor = null;
+			last = null;
+			advance();
+		}
+		
+		// checks if key is past the end of the range
+		protected abstract boolean beyond(K key);
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public R next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			R record = next;
+			advance();
+			return record;
+		}
+		
+		private void advance() {
+			lock.readLock().lock();
+			try {
+				boolean positioned;
+				if (cursor == null) {
+					cursor = tree.cursor();
+					positioned = start == null ? cursor.isValid() : cursor.seek(start) || cursor.isValid();
+				} else if (cursor.isValid()) {
+					positioned = cursor.next();
+				} else {
+					positioned = cursor.seek(last) ? cursor.next() : cursor.isValid();
+				}
+				
+				if (positioned && !beyond(cursor.getKey())) {
+					last = cursor.getKey();
+					next = cursor.getValue();
+				} else {
+					next = null;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * The key of a secondary index entry: the record's secondary key, with
+	 * its primary key breaking ties. A null primary key sorts before every
+	 * other, so (key, null) is the lower bound of all entries for key.
+	 */
+	private static class IndexKey<S extends Comparable<? super S>, PK extends Comparable<? super PK>>
+			implements Comparable<IndexKey<S,PK>> {
+		private final S secondary;
+		private final PK primary;
+		
+		public IndexKey(S secondary, PK primary) {
+			this.secondary = secondary;
+			this.primary = primary;
+		}
+		
+		public int compareTo(IndexKey<S,PK> other) {
+			int cmp = secondary.compareTo(other.secondary);
+			if (cmp != 0) {
+				return cmp;
+			} else if (primary == null) {
+				return other.primary == null ? 0 : -1;
+			} else if (other.primary == null) {
+				return 1;
+			}
+			return primary.compareTo(other.primary);
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			} else if (!(other instanceof IndexKey)) {
+				return false;
+			}
+			return compareTo((IndexKey<S,PK>) other) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * secondary.hashCode() + (primary == null ? 0 : primary.hashCode());
+		}
+		
+		@Override
+		public String toString() {
+			return "(" + secondary + ", " + primary + ")";
+		}
+	}
+	
+}
@@ -0,0 +1,84 @@
+package trees;
+
+/**
+ * A closed interval [start, end] over a comparable point type. Intervals are
+ * ordered by start, then by end, which is the key order used by
+ * {@link IntervalTree}.
+ *
+ * @param <P> A comparable point type for interval bounds.
+ */
+public final class Interval<P extends Comparable<? super P>> implements Comparable<Interval<P>> {
+	private final P start;
+	private final P end;
+	
+	/**
+	 * Creates the interval [start, end].
+	 * @param start The lower bound, inclusive.
+	 * @param end The upper bound, inclusive.
+	 * @throws IllegalArgumentException if end is less than start.
+	 */
+	public Interval(P start, P end) {
+		if (end.compareTo(start) < 0) {
+			throw new IllegalArgumentException("Interval end " + end + " is before start " + start + ".");
+		}
+		this.start = start;
+		this.end = end;
+	}
+	
+	public P getStart() {
+		return start;
+	}
+	
+	public P getEnd() {
+		return end;
+	}
+	
+	/**
+	 * Checks if the interval contains the given point.
+	 * @param point The point to check.
+	 * @return true if start <= point <= end; false otherwise.
+	 */
+	public boolean contains(P point) {
+		return start.compareTo(point) <= 0 && end.compareTo(point) >= 0;
+	}
+	
+	/**
+	 * Checks if the interval overlaps [lo, hi].
+	 * @param lo The lower bound of the other interval, inclusive.
+	 * @param hi The upper bound of the other interval, inclusive.
+	 * @return true if the intervals share at least one point; false otherwise.
+	 */
+	public boolean overlaps(P lo, P hi) {
+		return start.compareTo(hi) <= 0 && end.compareTo(lo) >= 0;
+	}
+	
+	public int compareTo(Interval<P> other) {
+		int cmp = start.compareTo(other.start);
+		if (cmp != 0) {
+			return cmp;
+		}
+		return end.compareTo(other.end);
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		} else if (!(other instanceof Interval)) {
+			return false;
+		}
+		Interval<?> interval = (Interval<?>) other;
+		return start.equals(interval.start) && end.equals(interval.end);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * start.hashCode() + end.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + start + ", " + end + "]";
+	}
+	
+}
@@ -0,0 +1,224 @@
+package trees;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * An interval tree built on the {@link AVLTree} balancing code. Keys are
+ * intervals ordered by start, and every node is augmented with the maximum
+ * end point in its subtree, which the tree keeps current through rotations
+ * and rebalancing under any {@link BalancePolicy}.
+ *
+ * Overlap queries prune every subtree whose maximum end lies before the
+ * query and every right subtree whose starts lie after it, so a query that
+ * reports k intervals costs O(min(n, k logn)) instead of a scan over all
+ * entries: each reported interval may cost a root-to-leaf descent into a
+ * subtree that holds no other match. Identical intervals are a single key.
+ *
+ * @param <P> A comparable point type for interval bounds.
+ * @param <V> A value type for tree nodes.
+ */
+public class IntervalTree<P extends Comparable<? super P>, V> extends AVLTree<Interval<P>, V> {
+	
+	public IntervalTree() {
+		super();
+	}
+	
+	public IntervalTree(BalancePolicy policy) {
+		super(policy);
+	}
+	
+	// copy constructor
+	public IntervalTree(final IntervalTree<P,V> other) {
+		super(other);
+	}
+	
+	/**
+	 * Inserts the interval [start, end] with the given value.
+	 * @param start The lower bound, inclusive.
+	 * @param end The upper bound, inclusive.
+	 * @param value The corresponding value to insert.
+	 */
+	public void insert(P start, P end, V value) {
+		insert(new Interval<P>(start, end), value);
+	}
+	
+	/**
+	 * Bulk loads entries into the tree. The entries are sorted and merged
+	 * with the existing ones in a single pass, replacing the values of
+	 * intervals already present.
+	 * @param entries The interval-value entries to load.
+	 */
+	public void load(List<Entry<Interval<P>,V>> entries) {
+		List<Entry<Interval<P>,V>> sorted = new ArrayList<Entry<Interval<P>,V>>(entries);
+		Collections.sort(sorted, new Comparator<Entry<Interval<P>,V>>() {
+			public int compare(Entry<Interval<P>,V> a, Entry<Interval<P>,V> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		
+		// keep the last value given for a repeated interval
+		List<Entry<Interval<P>,V>> unique = new ArrayList<Entry<Interval<P>,V>>(sorted.size());
+		for (Entry<Interval<P>,V> entry : sorted) {
+			int last = unique.size() - 1;
+			if (last >= 0 && unique.get(last).getKey().compareTo(entry.getKey()) == 0) {
+				unique.set(last, entry);
+			} else {
+				unique.add(entry);
+			}
+		}
+		merge(unique, Collections.<Interval<P>>emptyList());
+	}
+	
+	/**
+	 * Finds every interval containing the given point in O(min(n, k logn))
+	 * for k matches.
+	 * @param point The point to stab.
+	 * @return A list of entries whose intervals contain point, sorted by key.
+	 */
+	public List<Entry<Interval<P>,V>> stab(P point) {
+		List<Entry<Interval<P>,V>> entries = new ArrayList<Entry<Interval<P>,V>>();
+		Iterator<Entry<Interval<P>,V>> it = overlapping(point, point);
+		while (it.hasNext()) {
+			entries.add(it.next());
+		}
+		return entries;
+	}
+	
+	/**
+	 * Streams every interval overlapping [lo, hi] in key order. The iterator
+	 * walks the tree lazily and must not be used after the tree is modified;
+	 * reporting k intervals costs O(min(n, k logn)) in total.
+	 * @param lo The lower bound of the query, inclusive.
+	 * @param hi The upper bound of the query, inclusive.
+	 * @return An iterator over entries whose intervals overlap [lo, hi].
+	 */
+	public Iterator<Entry<Interval<P>,V>> overlapping(P lo, P hi) {
+		return new OverlapIterator(lo, hi);
+	}
+	
+	/**
+	 * Returns the greatest end point of all intervals in the tree.
+	 * @return The maximum end point, or null if the tree is empty.
+	 */
+	public P maxEnd() {
+		return maxEnd(root());
+	}
+	
+	/* Protected Methods */
+	
+	@Override
+	protected Node<Interval<P>,V> createNode(Interval<P> key, V value) {
+		return new IntervalNode<P,V>(key, value);
+	}
+	
+	@Override
+	protected boolean augment(Node<Interval<P>,V> node) {
+		P max = node.getKey().getEnd();
+		P leftMax = maxEnd(node.getLeft());
+		P rightMax = maxEnd(node.getRight());
+		if (leftMax != null && leftMax.compareTo(max) > 0) {
+			max = leftMax;
+		}
+		if (rightMax != null && rightMax.compareTo(max) > 0) {
+			max = rightMax;
+		}
+		IntervalNode<P,V> intervalNode = (IntervalNode<P,V>) node;
+		boolean changed = intervalNode.maxEnd == null || max.compareTo(intervalNode.maxEnd) != 0;
+		intervalNode.maxEnd = max;
+		return changed;
+	}
+	
+	@Override
+	protected void recycle(Node<Interval<P>,V> node) {
+		((IntervalNode<P,V>) node).maxEnd = null;
+	}
+	
+	/* Private Methods */
+	
+	private P maxEnd(Node<Interval<P>,V> node) {
+		if (node == null) {
+			return null;
+		}
+		return ((IntervalNode<P,V>) node).maxEnd;
+	}
+	
+	/*
+	 * A pruned in-order traversal with an explicit stack. Subtrees whose
+	 * maximum end is before lo cannot overlap the query, and neither can
+	 * anything right of a node that starts after hi.
+	 */
+	private class OverlapIterator implements Iterator<Entry<Interval<P>,V>> {
+		private final P lo;
+		private final P hi;
+		private final Deque<Node<Interval<P>,V>> stack;
+		private Node<Interval<P>,V> next;
+		
+		public OverlapIterator(P lo, P hi) {
+			this.lo = lo;
+			this.hi = hi;
+			stack = new ArrayDeque<Node<Interval<P>,V>>();
+			pushLeft(root());
+			advance();
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public Entry<Interval<P>,V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Node<Interval<P>,V> node = next;
+			advance();
+			return new AbstractMap.SimpleEntry<Interval<P>,V>(node.getKey(), node.getValue());
+		}
+		
+		private void pushLeft(Node<Interval<P>,V> node) {
+			while (node != null && maxEnd(node).compareTo(lo) >= 0) {
+				stack.push(node);
+				node = node.getLeft();
+			}
+		}
+		
+		private void advance() {
+			next = null;
+			while (!stack.isEmpty()) {
+				Node<Interval<P>,V> node = stack.pop();
+				Interval<P> interval = node.getKey();
+				if (interval.getStart().compareTo(hi) > 0) {
+					// this and every later interval starts after the query
+					stack.clear();
+					return;
+				}
+				pushLeft(node.getRight());
+				if (interval.getEnd().compareTo(lo) >= 0) {
+					next = node;
+					return;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * A tree node augmented with the maximum end point in its subtree.
+	 */
+	private static class IntervalNode<P extends Comparable<? super P>, V> extends Node<Interval<P>,V> {
+		private P maxEnd;
+		
+		public IntervalNode(Interval<P> key, V value) {
+			super(key, value);
+			maxEnd = key.getEnd();
+		}
+	}
+	
+}
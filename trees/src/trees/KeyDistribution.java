@@ -0,0 +1,34 @@
+package trees;
+
+/**
+ * Key distributions used by {@link WorkloadDriver} to pick the key of each
+ * generated operation. Loaded keys are 0 to records - 1 and inserted keys
+ * continue from there, so every distribution draws from a dense key space.
+ */
+public enum KeyDistribution {
+	
+	/**
+	 * Every key is equally likely.
+	 */
+	UNIFORM,
+	
+	/**
+	 * A few keys are very popular and most are rarely touched, following a
+	 * Zipfian law with skew 0.99. Popular keys are scattered across the key
+	 * space rather than clustered at its start.
+	 */
+	ZIPFIAN,
+	
+	/**
+	 * Recently inserted keys are the most popular, with popularity falling
+	 * off with age along the same Zipfian law.
+	 */
+	LATEST,
+	
+	/**
+	 * Keys are visited in ascending order, wrapping around at the end of the
+	 * key space.
+	 */
+	SEQUENTIAL
+	
+}
@@ -0,0 +1,21 @@
+package trees;
+
+/**
+ * Extracts a key from a record, e.g. its id or one of the fields an
+ * {@link IndexedTable} indexes it by. Extractors must be deterministic and
+ * must not return null: a record's keys are recomputed when it is replaced
+ * or removed to find its index entries.
+ *
+ * @param <R> The record type.
+ * @param <K> A comparable key type.
+ */
+public interface KeyExtractor<R, K extends Comparable<? super K>> {
+	
+	/**
+	 * Returns the key of a record.
+	 * @param record The record to extract the key from.
+	 * @return The record's key.
+	 */
+	public K keyOf(R record);
+	
+}
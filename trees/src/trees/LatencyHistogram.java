@@ -0,0 +1,155 @@
+package trees;
+
+/**
+ * A fixed-size histogram of latencies in the style of HdrHistogram. Values
+ * are counted in log-linear buckets: exact below 256, and above that in 128
+ * buckets per power of two, so any recorded value is reported within 1% of
+ * its true value while the whole range of a long fits in about 7,300 counters.
+ * Recording is a few shifts and an array increment, cheap enough to time
+ * every operation of a benchmark.
+ *
+ * The histogram is not thread-safe. Give each thread its own histogram and
+ * combine them with add() when the run is over.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	// enough buckets for the largest long, whose top bit is bit 62
+	private static final int BUCKETS = SUB_BUCKETS + (62 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS;
+	
+	private final long[] counts;
+	private long count;
+	private long sum;
+	private long min;
+	private long max;
+	
+	public LatencyHistogram() {
+		counts = new long[BUCKETS];
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+	
+	/**
+	 * Records a single value. Negative values are recorded as 0.
+	 * @param value The value to record, usually in nanoseconds.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+	
+	/**
+	 * Adds every value recorded by another histogram to this one.
+	 * @param other The histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+	
+	/**
+	 * Returns the value at the given percentile: the smallest recorded value
+	 * that at least that percentage of values are less than or equal to,
+	 * rounded up to the end of its bucket.
+	 * @param percentile The percentile to find, in [0, 100].
+	 * @return The value at percentile, or 0 if nothing was recorded.
+	 */
+	public long percentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestEquivalentValue(i), max);
+			}
+		}
+		return max;
+	}
+	
+	public long count() {
+		return count;
+	}
+	
+	/**
+	 * Returns the smallest recorded value.
+	 * @return The exact minimum, or 0 if nothing was recorded.
+	 */
+	public long min() {
+		return count == 0 ? 0 : min;
+	}
+	
+	/**
+	 * Returns the largest recorded value.
+	 * @return The exact maximum, or 0 if nothing was recorded.
+	 */
+	public long max() {
+		return max;
+	}
+	
+	/**
+	 * Returns the mean of the recorded values.
+	 * @return The exact mean, or 0 if nothing was recorded.
+	 */
+	public double mean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+	
+	/**
+	 * Removes all recorded values.
+	 */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+	
+	/* Private Methods */
+	
+	/*
+	 * Values below SUB_BUCKETS have a bucket each. Larger values are shifted
+	 * right until they fit in SUB_BUCKET_BITS bits, which leaves their top
+	 * bit set, so each shift amount uses only the upper half of the buckets.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		int mantissa = (int) (value >>> shift);
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (mantissa - HALF_SUB_BUCKETS);
+	}
+	
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int offset = index - SUB_BUCKETS;
+		int shift = offset / HALF_SUB_BUCKETS + 1;
+		long mantissa = HALF_SUB_BUCKETS + offset % HALF_SUB_BUCKETS;
+		long value = ((mantissa + 1) << shift) - 1;
+		// the last bucket ends past the largest long
+		return value < 0 ? Long.MAX_VALUE : value;
+	}
+	
+}
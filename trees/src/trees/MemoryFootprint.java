@@ -0,0 +1,103 @@
+package trees;
+
+/**
+ * A breakdown of the estimated heap memory of a tree, as returned by
+ * {@link AVLTree#memoryFootprint()}. All figures are in bytes.
+ *
+ * Sizes are estimated for a 64-bit JVM with compressed references: 12-byte
+ * object headers, 16-byte array headers, 4-byte references and objects
+ * aligned to 8 bytes. They are not measured, so they are off by whatever the
+ * running JVM does differently, but they track growth faithfully.
+ */
+public final class MemoryFootprint {
+	public static final int OBJECT_HEADER = 12;
+	public static final int ARRAY_HEADER = 16;
+	public static final int REFERENCE = 4;
+	public static final int ALIGNMENT = 8;
+	
+	private final long nodeBytes;
+	private final long keyBytes;
+	private final long valueBytes;
+	private final long filterBytes;
+	private final long poolBytes;
+	
+	public MemoryFootprint(long nodeBytes, long keyBytes, long valueBytes, long filterBytes, long poolBytes) {
+		this.nodeBytes = nodeBytes;
+		this.keyBytes = keyBytes;
+		this.valueBytes = valueBytes;
+		this.filterBytes = filterBytes;
+		this.poolBytes = poolBytes;
+	}
+	
+	/**
+	 * Rounds a size up to the object alignment.
+	 * @param bytes The unaligned size.
+	 * @return The size the object occupies on the heap.
+	 */
+	public static long align(long bytes) {
+		return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+	
+	/**
+	 * Returns the size of an array.
+	 * @param length The number of elements.
+	 * @param elementBytes The size of one element, e.g. REFERENCE.
+	 * @return The aligned size of the array in bytes.
+	 */
+	public static long arrayBytes(int length, int elementBytes) {
+		return align(ARRAY_HEADER + (long) length * elementBytes);
+	}
+	
+	/**
+	 * Returns the shallow size of the tree's nodes: headers, links and
+	 * balance fields, excluding the keys and values they refer to, plus 
+	 * any data subclasses keep beside the entries.
+	 * @return The bytes of all nodes.
+	 */
+	public long nodeBytes() {
+		return nodeBytes;
+	}
+	
+	/**
+	 * Returns the size of the keys as estimated by the tree's key estimator.
+	 * @return The bytes of all keys, or 0 if keys are not estimated.
+	 */
+	public long keyBytes() {
+		return keyBytes;
+	}
+	
+	/**
+	 * Returns the size of the values as estimated by the tree's value estimator.
+	 * @return The bytes of all values, or 0 if values are not estimated.
+	 */
+	public long valueBytes() {
+		return valueBytes;
+	}
+	
+	/**
+	 * Returns the size of the membership filter.
+	 * @return The bytes of the filter, or 0 if the tree has none.
+	 */
+	public long filterBytes() {
+		return filterBytes;
+	}
+	
+	/**
+	 * Returns the size of the node pool including its idle nodes.
+	 * @return The bytes of the pool, or 0 if the tree has none.
+	 */
+	public long poolBytes() {
+		return poolBytes;
+	}
+	
+	public long totalBytes() {
+		return nodeBytes + keyBytes + valueBytes + filterBytes + poolBytes;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("MemoryFootprint[total %d, nodes %d, keys %d, values %d, filter %d, pool %d]",
+				totalBytes(), nodeBytes, keyBytes, valueBytes, filterBytes, poolBytes);
+	}
+	
+}
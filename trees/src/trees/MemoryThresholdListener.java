@@ -0,0 +1,25 @@
+package trees;
+
+/**
+ * Is notified when the estimated memory of a tree crosses a budget threshold
+ * registered with {@link AVLTree#addMemoryThreshold}, e.g. to stop admitting
+ * writes or to evict old entries before the heap fills. Listeners are called
+ * at the end of the operation that crossed the threshold, once per crossing.
+ */
+public interface MemoryThresholdListener {
+	
+	/**
+	 * Called when the estimate reaches or exceeds the threshold.
+	 * @param threshold The threshold in bytes.
+	 * @param estimatedBytes The estimated size of the tree in bytes.
+	 */
+	public void thresholdExceeded(long threshold, long estimatedBytes);
+	
+	/**
+	 * Called when the estimate drops back below the threshold.
+	 * @param threshold The threshold in bytes.
+	 * @param estimatedBytes The estimated size of the tree in bytes.
+	 */
+	public void thresholdCleared(long threshold, long estimatedBytes);
+	
+}
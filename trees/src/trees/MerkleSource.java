@@ -0,0 +1,44 @@
+package trees;
+
+import java.util.List;
+
+/**
+ * A source of order-independent digests over key ranges of a replicated
+ * tree. {@link MerkleTree} implements it for a local tree; a remote replica
+ * can implement it by forwarding the calls, so that
+ * {@link MerkleTree#diff(MerkleSource)} only ships a digest per range it
+ * needs to compare.
+ *
+ * A digest is the wrapping 64-bit sum of the entry hashes of
+ * {@link MerkleTree#entryHash}, so an empty range has digest 0 and two
+ * ranges holding the same entries have the same digest regardless of tree
+ * shape.
+ *
+ * @param <K> A comparable key type for tree nodes.
+ */
+public interface MerkleSource<K extends Comparable<? super K>> {
+	
+	/**
+	 * Computes the digest of all entries with keys strictly between lo and hi.
+	 * @param lo The exclusive lower bound, or null for no lower bound.
+	 * @param hi The exclusive upper bound, or null for no upper bound.
+	 * @return The digest of the range; 0 if it holds no entries.
+	 */
+	public long digest(K lo, K hi);
+	
+	/**
+	 * Computes the digest of a single entry.
+	 * @param key The key of the entry.
+	 * @return The entry hash for key, or 0 if there is no such entry.
+	 */
+	public long digest(K key);
+	
+	/**
+	 * Retrieves the keys strictly between lo and hi in sorted order.
+	 * @param lo The exclusive lower bound, or null for no lower bound.
+	 * @param hi The exclusive upper bound, or null for no upper bound.
+	 * @return A list of keys in the range.
+	 */
+	public List<K> keys(K lo, K hi);
+	
+}
@@ -0,0 +1,277 @@
+package trees;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link AVLTree} whose nodes carry a digest of their subtree, for cheap
+ * comparison and reconciliation of replicas. Digests are maintained through
+ * inserts, removes, rotations and modifyValue().
+ *
+ * A subtree digest is the wrapping sum of the hashes of its entries rather
+ * than a hash of its children's hashes, so it does not depend on the shape
+ * of the tree: replicas built in different orders or with different balance
+ * policies agree on the digest of every key range, and a range digest can be
+ * computed in O(logn) from the subtree digests. diff() walks this tree and
+ * only descends into subtrees whose digest differs from the other replica's
+ * digest of the same key range, so it costs O(d logn) digest comparisons for
+ * d differing keys instead of a comparison of every entry.
+ *
+ * Entries are hashed from their serialized bytes, written by the key and
+ * value {@link Codec}s the tree is constructed with, so equal entries hash
+ * alike in every process and entries that differ in any byte are told apart
+ * even if their hashCode() collides. Every replica must use the same codecs.
+ * Each node caches the hash of its entry, so only updates serialize entries
+ * and digest queries may run concurrently like any other read. Values must
+ * not be modified in place, as the cached hash would go stale.
+ *
+ * @param <K> A comparable key type for tree nodes.
+ * @param <V> A value type for tree nodes.
+ */
+public class MerkleTree<K extends Comparable<? super K>, V> extends AVLTree<K,V> implements MerkleSource<K> {
+	
+	private final Codec<K> keyCodec;
+	private final Codec<V> valueCodec;
+	
+	/**
+	 * Creates an empty tree hashing entries through the given codecs.
+	 * @param keyCodec Serializes keys for hashing.
+	 * @param valueCodec Serializes values for hashing.
+	 */
+	public MerkleTree(Codec<K> keyCodec, Codec<V> valueCodec) {
+		this(keyCodec, valueCodec, BalancePolicy.AVL);
+	}
+	
+	public MerkleTree(Codec<K> keyCodec, Codec<V> valueCodec, BalancePolicy policy) {
+		super(policy);
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+	}
+	
+	// copy constructor
+	public MerkleTree(final MerkleTree<K,V> other) {
+		super(other);
+		keyCodec = other.keyCodec;
+		valueCodec = other.valueCodec;
+		// the superclass copied the nodes before the codecs were set
+		rehash(root());
+	}
+	
+	/**
+	 * Returns the digest of the whole tree.
+	 * @return The digest of all entries; 0 if the tree is empty.
+	 */
+	public long rootDigest() {
+		return digest(root());
+	}
+	
+	public long digest(K lo, K hi) {
+		long upper = hi == null ? rootDigest() : digestBelow(hi, false);
+		long lower = lo == null ? 0 : digestBelow(lo, true);
+		return upper - lower;
+	}
+	
+	public long digest(K key) {
+		Node<K,V> node = findNode(key);
+		if (node == null) {
+			return 0;
+		}
+		return ((MerkleNode<K,V>) node).hash;
+	}
+	
+	public List<K> keys(K lo, K hi) {
+		List<K> keys = new ArrayList<K>();
+		keys(root(), lo, hi, keys);
+		return keys;
+	}
+	
+	/**
+	 * Finds the keys whose entries differ between this tree and another
+	 * replica: keys present in only one of them, or mapped to different
+	 * values.
+	 * @param other The replica to compare against.
+	 * @return A sorted list of the differing keys.
+	 */
+	public List<K> diff(MerkleSource<K> other) {
+		List<K> changed = new ArrayList<K>();
+		diff(root(), null, null, other, changed);
+		return changed;
+	}
+	
+	/**
+	 * Hashes a single entry. The default hashes the serialized key and value
+	 * into 64 bits; it is not cryptographic, so subclasses comparing replicas
+	 * that may be tampered with should override it with a stronger hash.
+	 * Every replica must use the same entry hash. The tree calls this when an
+	 * entry is inserted or its value replaced, and caches the result.
+	 * @param key The key of the entry.
+	 * @param value The value of the entry.
+	 * @return A 64-bit hash of the entry.
+	 */
+	public long entryHash(K key, V value) {
+		long h = hash(key, keyCodec);
+		h ^= value == null ? 0 : hash(value, valueCodec) * 0x9E3779B97F4A7C15L;
+		// keep 0 reserved for the empty digest
+		return h == 0 ? 1 : h;
+	}
+	
+	/* Protected Methods */
+	
+	@Override
+	protected Node<K,V> createNode(K key, V value) {
+		return new MerkleNode<K,V>(key, value);
+	}
+	
+	@Override
+	protected boolean augment(Node<K,V> node) {
+		if (keyCodec == null) {
+			// called by the copy constructor of AVLTree; see rehash()
+			return false;
+		}
+		MerkleNode<K,V> merkleNode = (MerkleNode<K,V>) node;
+		// rotations call this too, but only a new entry or value needs hashing
+		if (merkleNode.hash == 0 || merkleNode.hashedValue != node.getValue()) {
+			merkleNode.hash = entryHash(node.getKey(), node.getValue());
+			merkleNode.hashedValue = node.getValue();
+		}
+		long digest = merkleNode.hash + digest(node.getLeft()) + digest(node.getRight());
+		boolean changed = digest != merkleNode.digest;
+		merkleNode.digest = digest;
+		return changed;
+	}
+	
+	@Override
+	protected void recycle(Node<K,V> node) {
+		// a pooled node is reused for another key
+		((MerkleNode<K,V>) node).hash = 0;
+		((MerkleNode<K,V>) node).hashedValue = null;
+	}
+	
+	@Override
+	protected int nodeBytes() {
+		// the digest, hash and hashedValue fields of MerkleNode
+		return (int) MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + 5 * MemoryFootprint.REFERENCE + 4 + 1 + 8 + 8);
+	}
+	
+	/* Private Methods */
+	
+	// hashes the bytes codec writes for object
+	private static <T> long hash(T object, Codec<T> codec) {
+		int size = codec.size(object);
+		// a buffer per call keeps entryHash() safe for concurrent callers
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		codec.write(object, buffer);
+		buffer.flip();
+		
+		long h = 0x9E3779B97F4A7C15L ^ size;
+		while (buffer.remaining() >= 8) {
+			h = mix(h ^ buffer.getLong());
+		}
+		long tail = 0;
+		for (int shift = 0; buffer.hasRemaining(); shift += 8) {
+			tail |= (buffer.get() & 0xFFL) << shift;
+		}
+		return mix(mix(h ^ tail));
+	}
+	
+	private static long mix(long h) {
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	// recomputes the digests of a subtree bottom-up
+	private void rehash(Node<K,V> node) {
+		if (node == null) {
+			return;
+		}
+		rehash(node.getLeft());
+		rehash(node.getRight());
+		augment(node);
+	}
+	
+	private long digest(Node<K,V> node) {
+		if (node == null) {
+			return 0;
+		}
+		return ((MerkleNode<K,V>) node).digest;
+	}
+	
+	// digest of the entries with keys less than (or equal to) the given key
+	private long digestBelow(K key, boolean inclusive) {
+		long sum = 0;
+		Node<K,V> node = root();
+		while (node != null) {
+			int cmp = key.compareTo(node.getKey());
+			if (cmp < 0 || (cmp == 0 && !inclusive)) {
+				node = node.getLeft();
+			} else {
+				sum += digest(node.getLeft()) + ((MerkleNode<K,V>) node).hash;
+				node = node.getRight();
+			}
+		}
+		return sum;
+	}
+	
+	private void keys(Node<K,V> node, K lo, K hi, List<K> keys) {
+		if (node == null) {
+			return;
+		}
+		boolean aboveLo = lo == null || node.getKey().compareTo(lo) > 0;
+		boolean belowHi = hi == null || node.getKey().compareTo(hi) < 0;
+		if (aboveLo) {
+			keys(node.getLeft(), lo, hi, keys);
+		}
+		if (aboveLo && belowHi) {
+			keys.add(node.getKey());
+		}
+		if (belowHi) {
+			keys(node.getRight(), lo, hi, keys);
+		}
+	}
+	
+	/*
+	 * Compares the subtree at node, which holds exactly the local keys
+	 * strictly between lo and hi, with the other replica's digest of the
+	 * same range, descending only where they differ.
+	 */
+	private void diff(Node<K,V> node, K lo, K hi, MerkleSource<K> other, List<K> changed) {
+		long otherDigest = other.digest(lo, hi);
+		if (node == null) {
+			if (otherDigest != 0) {
+				changed.addAll(other.keys(lo, hi));
+			}
+			return;
+		} else if (digest(node) == otherDigest) {
+			return;
+		}
+		
+		diff(node.getLeft(), lo, node.getKey(), other, changed);
+		if (((MerkleNode<K,V>) node).hash != other.digest(node.getKey())) {
+			changed.add(node.getKey());
+		}
+		diff(node.getRight(), node.getKey(), hi, other, changed);
+	}
+	
+	/*
+	 * A tree node augmented with the digest of its subtree and the hash of
+	 * its own entry, which is 0 until computed.
+	 */
+	private static class MerkleNode<K extends Comparable<? super K>, V> extends Node<K,V> {
+		private long digest;
+		private long hash;
+		// the value hash was computed for
+		private Object hashedValue;
+		
+		public MerkleNode(K key, V value) {
+			super(key, value);
+			digest = 0;
+			hash = 0;
+			hashedValue = null;
+		}
+	}
+	
+}
@@ -0,0 +1,346 @@
+package trees;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A multimap built on {@link AVLTree}: every key maps to one or more values
+ * without a node per duplicate. A node stores its first value in place and
+ * any further values in a compact bucket, a small inline array that grows
+ * into a list of fixed-size chunks, so a heavily duplicated key costs one
+ * array slot per extra value instead of a node or a wrapping collection per
+ * key with a single value.
+ *
+ * Nodes are augmented with the total number of values in their subtree, so
+ * totalCount() and countBelow() account for multiplicity in O(logn).
+ *
+ * The inherited single-value operations keep their meaning: insert() rejects
+ * existing keys, find() and values() report each key's first value, and
+ * remove() removes a key with all of its values.
+ *
+ * @param <K> A comparable key type for tree nodes.
+ * @param <V> A value type for tree nodes.
+ */
+public class MultimapTree<K extends Comparable<? super K>, V> extends AVLTree<K,V> {
+	
+	public MultimapTree() {
+		super();
+	}
+	
+	public MultimapTree(BalancePolicy policy) {
+		super(policy);
+	}
+	
+	/**
+	 * Adds a value for the key, keeping any values the key already has.
+	 * @param key The key to insert.
+	 * @param value The value to add for key.
+	 */
+	public void insertDuplicate(K key, V value) {
+		BucketNode<K,V> node = (BucketNode<K,V>) findNode(key);
+		if (node == null) {
+			insert(key, value);
+			return;
+		}
+		
+		long oldBytes = bucketBytes(node);
+		if (node.bucket == null) {
+			node.bucket = new ValueBucket();
+		}
+		node.bucket.add(value);
+		augmentPath(key);
+		nodeChanged(node.getValue(), node.getValue(), bucketBytes(node) - oldBytes + estimatedValueBytes(value));
+	}
+	
+	/**
+	 * Removes one occurrence of a value from the key. The key itself is
+	 * removed along with its last value.
+	 * @param key The key to update.
+	 * @param value The value to remove.
+	 * @return true if the value was found and removed; false otherwise.
+	 */
+	public boolean removeDuplicate(K key, V value) {
+		BucketNode<K,V> node = (BucketNode<K,V>) findNode(key);
+		if (node == null) {
+			return false;
+		}
+		
+		int size = node.bucket == null ? 0 : node.bucket.size();
+		long oldBytes = bucketBytes(node);
+		V first = node.getValue();
+		V removed;
+		if (equal(first, value)) {
+			if (size == 0) {
+				remove(key);
+				return true;
+			}
+			// the next value moves from the bucket into the node
+			removed = node.bucket.<V>remove(0);
+			node.setValue(removed);
+		} else {
+			int index = 0;
+			while (index < size && !equal(node.bucket.get(index), value)) {
+				index++;
+			}
+			if (index == size) {
+				return false;
+			}
+			removed = node.bucket.<V>remove(index);
+		}
+		
+		if (node.bucket.size() == 0) {
+			node.bucket = null;
+		}
+		augmentPath(key);
+		nodeChanged(first, node.getValue(), bucketBytes(node) - oldBytes - estimatedValueBytes(removed));
+		return true;
+	}
+	
+	/**
+	 * Returns the number of values stored for the key.
+	 * @param key The key to check.
+	 * @return The multiplicity of key, or 0 if the tree does not contain it.
+	 */
+	public int count(K key) {
+		BucketNode<K,V> node = (BucketNode<K,V>) findNode(key);
+		if (node == null) {
+			return 0;
+		}
+		return node.count();
+	}
+	
+	/**
+	 * Returns the number of values stored in the tree, counting every
+	 * duplicate. size() counts distinct keys.
+	 * @return The total multiplicity of all keys.
+	 */
+	public long totalCount() {
+		return total(root());
+	}
+	
+	/**
+	 * Returns the number of values stored under keys strictly less than the
+	 * given key, counting every duplicate.
+	 * @param key The key to check.
+	 * @return The total multiplicity of keys less than key.
+	 */
+	public long countBelow(K key) {
+		long count = 0;
+		Node<K,V> node = root();
+		while (node != null) {
+			if (key.compareTo(node.getKey()) <= 0) {
+				node = node.getLeft();
+			} else {
+				count += total(node.getLeft()) + ((BucketNode<K,V>) node).count();
+				node = node.getRight();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Iterates lazily over the values of the key in insertion order. The
+	 * iterator must not be used after the key's values are modified.
+	 * @param key The key to look up.
+	 * @return An iterator over the values of key, empty if it is absent.
+	 */
+	public Iterator<V> valuesOf(K key) {
+		return new BucketIterator((BucketNode<K,V>) findNode(key));
+	}
+	
+	/* Protected Methods */
+	
+	@Override
+	protected Node<K,V> createNode(K key, V value) {
+		return new BucketNode<K,V>(key, value);
+	}
+	
+	@Override
+	protected boolean augment(Node<K,V> node) {
+		BucketNode<K,V> bucketNode = (BucketNode<K,V>) node;
+		long total = bucketNode.count() + total(node.getLeft()) + total(node.getRight());
+		boolean changed = total != bucketNode.total;
+		bucketNode.total = total;
+		return changed;
+	}
+	
+	@Override
+	protected void recycle(Node<K,V> node) {
+		((BucketNode<K,V>) node).bucket = null;
+	}
+	
+	@Override
+	protected long extraBytes(Node<K,V> node) {
+		BucketNode<K,V> bucketNode = (BucketNode<K,V>) node;
+		long bytes = bucketBytes(bucketNode);
+		for (int i = 0; bucketNode.bucket != null && i < bucketNode.bucket.size(); i++) {
+			bytes += estimatedValueBytes(bucketNode.bucket.<V>get(i));
+		}
+		return bytes;
+	}
+	
+	@Override
+	protected int nodeBytes() {
+		// the bucket and total fields of BucketNode
+		return (int) MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + 5 * MemoryFootprint.REFERENCE + 4 + 1 + 8);
+	}
+	
+	/* Private Methods */
+	
+	private long total(Node<K,V> node) {
+		if (node == null) {
+			return 0;
+		}
+		return ((BucketNode<K,V>) node).total;
+	}
+	
+	private static long bucketBytes(BucketNode<?,?> node) {
+		return node.bucket == null ? 0 : node.bucket.estimatedBytes();
+	}
+	
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	private class BucketIterator implements Iterator<V> {
+		private final BucketNode<K,V> node;
+		private final int count;
+		private int index;
+		
+		public BucketIterator(BucketNode<K,V> node) {
+			this.node = node;
+			count = node == null ? 0 : node.count();
+			index = 0;
+		}
+		
+		public boolean hasNext() {
+			return index < count;
+		}
+		
+		public V next() {
+			if (index >= count) {
+				throw new NoSuchElementException();
+			}
+			V value = index == 0 ? node.getValue() : node.bucket.<V>get(index - 1);
+			index++;
+			return value;
+		}
+	}
+	
+	/*
+	 * A tree node holding every value of its key and the total number of
+	 * values in its subtree. The first value lives in the node itself and
+	 * the bucket is only allocated for a second one.
+	 */
+	private static class BucketNode<K extends Comparable<? super K>, V> extends Node<K,V> {
+		private ValueBucket bucket;
+		private long total;
+		
+		public BucketNode(K key, V value) {
+			super(key, value);
+			bucket = null;
+			total = 1;
+		}
+		
+		public int count() {
+			return bucket == null ? 1 : bucket.size() + 1;
+		}
+	}
+	
+	/*
+	 * A growable array of values. The first CHUNK_SIZE values live in an
+	 * inline array that doubles as needed; later values go into fixed-size
+	 * chunks, so growing a large bucket never copies more than one chunk.
+	 */
+	private static class ValueBucket {
+		private static final int INITIAL_CAPACITY = 2;
+		private static final int CHUNK_SIZE = 64;
+		// the bucket's fields, and an ArrayList's fields once it has chunks
+		private static final int BUCKET_BYTES = (int) MemoryFootprint.align(
+				MemoryFootprint.OBJECT_HEADER + 2 * MemoryFootprint.REFERENCE + 4);
+		private static final int LIST_BYTES = (int) MemoryFootprint.align(
+				MemoryFootprint.OBJECT_HEADER + MemoryFootprint.REFERENCE + 4 + 4);
+		
+		private Object[] head;
+		private List<Object[]> chunks;
+		private int size;
+		
+		public ValueBucket() {
+			head = new Object[INITIAL_CAPACITY];
+			chunks = null;
+			size = 0;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		// the shallow size of the bucket and its arrays, without the values
+		public long estimatedBytes() {
+			long bytes = BUCKET_BYTES + MemoryFootprint.arrayBytes(head.length, MemoryFootprint.REFERENCE);
+			if (chunks != null) {
+				// ignores spare capacity in the list's backing array
+				bytes += LIST_BYTES + MemoryFootprint.arrayBytes(chunks.size(), MemoryFootprint.REFERENCE)
+						+ chunks.size() * MemoryFootprint.arrayBytes(CHUNK_SIZE, MemoryFootprint.REFERENCE);
+			}
+			return bytes;
+		}
+		
+		public void add(Object value) {
+			if (size < CHUNK_SIZE) {
+				if (size == head.length) {
+					Object[] grown = new Object[Math.min(2 * head.length, CHUNK_SIZE)];
+					System.arraycopy(head, 0, grown, 0, size);
+					head = grown;
+				}
+				head[size] = value;
+			} else {
+				int offset = size - CHUNK_SIZE;
+				if (chunks == null) {
+					chunks = new ArrayList<Object[]>();
+				}
+				if (offset % CHUNK_SIZE == 0) {
+					chunks.add(new Object[CHUNK_SIZE]);
+				}
+				chunks.get(offset / CHUNK_SIZE)[offset % CHUNK_SIZE] = value;
+			}
+			size++;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public <V> V get(int index) {
+			if (index < CHUNK_SIZE) {
+				return (V) head[index];
+			}
+			int offset = index - CHUNK_SIZE;
+			return (V) chunks.get(offset / CHUNK_SIZE)[offset % CHUNK_SIZE];
+		}
+		
+		// removes the value at index, shifting later values down
+		public <V> V remove(int index) {
+			V value = this.<V>get(index);
+			for (int i = index; i < size - 1; i++) {
+				set(i, get(i + 1));
+			}
+			set(size - 1, null);
+			size--;
+			
+			if (size >= CHUNK_SIZE && (size - CHUNK_SIZE) % CHUNK_SIZE == 0) {
+				chunks.remove(chunks.size() - 1);
+			}
+			return value;
+		}
+		
+		private void set(int index, Object value) {
+			if (index < CHUNK_SIZE) {
+				head[index] = value;
+			} else {
+				int offset = index - CHUNK_SIZE;
+				chunks.get(offset / CHUNK_SIZE)[offset % CHUNK_SIZE] = value;
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,159 @@
+package trees;
+
+/**
+ * A bounded free list of tree nodes for reuse. A tree with a pool enabled
+ * (see {@link AVLTree#enableNodePool}) hands the nodes of removed entries to
+ * the pool and takes new nodes from it before allocating, so a workload that
+ * removes and inserts at the same rate allocates almost nothing once the pool
+ * has warmed up.
+ *
+ * The price is memory: idle nodes stay reachable instead of being collected.
+ * The pool never holds more than its capacity, and its statistics show how
+ * many nodes it holds and how often it saves an allocation, so the capacity
+ * can be sized against the turnover it actually absorbs.
+ *
+ * The pool is not thread-safe; it is used under the owning tree's locking.
+ *
+ * @param <T> The node type of the pool.
+ */
+public class NodePool<T> {
+	private final Object[] free;
+	private int size;
+	private int peakSize;
+	private long hits;
+	private long misses;
+	private long releases;
+	private long discards;
+
+	/**
+	 * Creates an empty pool.
+	 * @param capacity The maximum number of idle nodes the pool keeps.
+	 */
+	public NodePool(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Pool capacity must not be negative.");
+		}
+		free = new Object[capacity];
+		size = 0;
+		peakSize = 0;
+	}
+
+	/**
+	 * Takes an idle node from the pool.
+	 * @return A node previously released to the pool, or null if the pool is
+	 * empty and the caller has to allocate one.
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire() {
+		if (size == 0) {
+			misses++;
+			return null;
+		}
+		hits++;
+		T node = (T) free[--size];
+		free[size] = null;
+		return node;
+	}
+
+	/**
+	 * Returns a node to the pool. The caller must have cleared every
+	 * reference the node holds and must not use it afterwards.
+	 * @param node The node to release.
+	 * @return true if the pool kept the node; false if it was full and the
+	 * node is left to the garbage collector.
+	 */
+	public boolean release(T node) {
+		if (size == free.length) {
+			discards++;
+			return false;
+		}
+		releases++;
+		free[size++] = node;
+		peakSize = Math.max(peakSize, size);
+		return true;
+	}
+
+	public boolean isFull() {
+		return size == free.length;
+	}
+
+	public int capacity() {
+		return free.length;
+	}
+
+	/**
+	 * Returns the number of idle nodes held by the pool.
+	 * @return The number of nodes available to acquire().
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the largest number of idle nodes the pool has held at once,
+	 * a bound on the memory it has retained.
+	 * @return The peak number of idle nodes.
+	 */
+	public int peakSize() {
+		return peakSize;
+	}
+
+	/**
+	 * Returns the number of acquires served from the pool.
+	 * @return The number of allocations the pool saved.
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of acquires that found the pool empty.
+	 * @return The number of nodes allocated despite the pool.
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of nodes the pool kept when they were released.
+	 * @return The number of nodes taken in.
+	 */
+	public long releases() {
+		return releases;
+	}
+
+	/**
+	 * Returns the number of released nodes the pool had no room for.
+	 * @return The number of nodes left to the garbage collector.
+	 */
+	public long discards() {
+		return discards;
+	}
+
+	/**
+	 * Returns the fraction of acquires served from the pool.
+	 * @return The hit rate in [0, 1], or 0 if nothing was acquired.
+	 */
+	public double hitRate() {
+		long acquires = hits + misses;
+		return acquires == 0 ? 0 : (double) hits / acquires;
+	}
+
+	/**
+	 * Drops every idle node, releasing the memory they hold. Statistics are
+	 * kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			free[i] = null;
+		}
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("NodePool[idle %d/%d, peak %d, hits %d, misses %d, hit rate %.1f%%, discards %d]",
+				size, free.length, peakSize, hits, misses, 100 * hitRate(), discards);
+	}
+
+}
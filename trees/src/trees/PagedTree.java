@@ -0,0 +1,1028 @@
+package trees;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A search tree kept in a file, for data sets larger than memory. Entries
+ * live in the leaves of a B+tree whose nodes are fixed-size pages of the
+ * file; internal pages hold only separator keys and child page numbers, so a
+ * lookup reads one page per level and the tree stays a few levels deep even
+ * for billions of entries.
+ *
+ * Pages are cached in a bounded buffer pool sized by a memory budget.
+ * Eviction uses the CLOCK algorithm, but an internal page starts with more
+ * usage credit than a leaf, so the few upper-level pages that every lookup
+ * passes through effectively stay in memory while cold leaves cycle through
+ * the pool. Modified pages are written back to the file through a
+ * {@link FileChannel} when they are evicted and on flush() or close().
+ *
+ * Keys and values are stored through {@link Codec}s, and an entry may take
+ * at most a quarter of a page. A leaf emptied by removes is unlinked from its
+ * parent and from the leaf chain and put on a free list that later splits 
+ * reuse, so queries never pass through empty pages and a sliding window of 
+ * keys does not grow the file. Pages that are merely underfull are not 
+ * merged. There is no write-ahead log, so a file that was not closed cleanly 
+ * may be inconsistent.
+ *
+ * The tree is not thread-safe.
+ *
+ * @param <K> A comparable key type for tree entries.
+ * @param <V> A value type for tree entries.
+ */
+public class PagedTree<K extends Comparable<? super K>, V> implements BinarySearchTree<K,V>, Closeable {
+	
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+	
+	// identifies a tree file, followed by page size, root, page count, size, 
+	// height and the first free page
+	private static final int MAGIC = 0x50544632;
+	private static final int FILE_HEADER_BYTES = 28;
+	
+	// page type, number of keys and next leaf, or next free page
+	private static final int PAGE_HEADER_BYTES = 9;
+	private static final byte LEAF = 0;
+	private static final byte INTERNAL = 1;
+	private static final int NO_PAGE = -1;
+	
+	// page 0 holds the file header, the first root is page 1
+	private static final int HEADER_PAGE = 0;
+	private static final int FIRST_ROOT = 1;
+	
+	private static final int MIN_PAGE_SIZE = 128;
+	private static final int MIN_FRAMES = 16;
+	
+	// CLOCK sweeps a page survives unreferenced: internal pages outlive leaves
+	private static final int LEAF_USAGE = 1;
+	private static final int INTERNAL_USAGE = 4;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Codec<K> keyCodec;
+	private final Codec<V> valueCodec;
+	private final int pageSize;
+	private final int maxEntryBytes;
+	private final ByteBuffer buffer;
+	private final BufferPool pool;
+	
+	private int root;
+	private int pageCount;
+	private int elements;
+	private int height;
+	// head of the list of free pages, linked through their next fields
+	private int freeList;
+	
+	private long pageReads;
+	private long pageWrites;
+	
+	public PagedTree(File path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+		this(path, keyCodec, valueCodec, DEFAULT_PAGE_SIZE, DEFAULT_MEMORY_BUDGET);
+	}
+	
+	/**
+	 * Opens the tree stored in path, or creates an empty one if the file is
+	 * empty or does not exist.
+	 * @param path The file holding the tree.
+	 * @param keyCodec The codec for keys.
+	 * @param valueCodec The codec for values.
+	 * @param pageSize The size of a page in bytes. An existing file must
+	 * have been created with the same page size.
+	 * @param memoryBudget The number of bytes of pages the buffer pool may
+	 * cache. Decoded pages take more heap than their size on disk, so this
+	 * bounds the heap used only roughly.
+	 * @throws IOException If the file cannot be opened or is not a tree file
+	 * with this page size.
+	 */
+	public PagedTree(File path, Codec<K> keyCodec, Codec<V> valueCodec, int pageSize, long memoryBudget) throws IOException {
+		if (pageSize < MIN_PAGE_SIZE) {
+			throw new IllegalArgumentException("Page size must be at least " + MIN_PAGE_SIZE + " bytes.");
+		}
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.pageSize = pageSize;
+		// keeps both halves of a split page within a page
+		maxEntryBytes = (pageSize - PAGE_HEADER_BYTES - 4) / 4;
+		buffer = ByteBuffer.allocateDirect(pageSize);
+		pool = new BufferPool((int) Math.max(MIN_FRAMES, Math.min(Integer.MAX_VALUE, memoryBudget / pageSize)));
+		
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		try {
+			if (channel.size() == 0) {
+				initialize();
+			} else {
+				readHeader();
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+	
+	public V find(K key) {
+		Page leaf = findLeaf(key);
+		try {
+			int i = Collections.binarySearch(leaf.keys, key);
+			return i < 0 ? null : leaf.values.get(i);
+		} finally {
+			pool.unpin(leaf);
+		}
+	}
+	
+	public void insert(K key, V value) {
+		if (contains(key)) {
+			System.err.println("Error: key " + key + " already exists.");
+			return;
+		}
+		Split split = insert(root, key, value, checkEntry(key, value));
+		if (split != null) {
+			// the root split, so the tree grows a level at the top
+			Page newRoot = pool.allocate(false);
+			newRoot.children.add(root);
+			newRoot.keys.add(split.separator);
+			newRoot.children.add(split.right);
+			newRoot.bytes = measure(newRoot);
+			pool.unpin(newRoot);
+			root = newRoot.id;
+			height++;
+		}
+		elements++;
+	}
+	
+	public V remove(K key) {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		
+		Page leaf = findLeaf(key);
+		V oldVal;
+		boolean emptied;
+		try {
+			int i = Collections.binarySearch(leaf.keys, key);
+			if (i < 0) {
+				System.err.println("Error: tree does not contain key " + key + ".");
+				return null;
+			}
+			// underfull leaves are not merged; separators stay valid
+			K oldKey = leaf.keys.remove(i);
+			oldVal = leaf.values.remove(i);
+			leaf.bytes -= keyCodec.size(oldKey) + valueCodec.size(oldVal);
+			leaf.dirty = true;
+			elements--;
+			emptied = leaf.keys.isEmpty() && leaf.id != root;
+		} finally {
+			pool.unpin(leaf);
+		}
+		
+		if (emptied) {
+			// queries would otherwise have to step over the empty leaf
+			detach(root, key, NO_PAGE);
+			shrinkRoot();
+		}
+		return oldVal;
+	}
+	
+	public void modifyValue(K key, V newValue) {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return;
+		}
+		checkEntry(key, newValue);
+		
+		Page leaf = findLeaf(key);
+		try {
+			int i = Collections.binarySearch(leaf.keys, key);
+			if (i < 0) {
+				System.err.println("Error: tree does not contain key " + key + ".");
+				return;
+			}
+			int bytes = leaf.bytes - valueCodec.size(leaf.values.get(i)) + valueCodec.size(newValue);
+			if (bytes <= pageSize) {
+				leaf.values.set(i, newValue);
+				leaf.bytes = bytes;
+				leaf.dirty = true;
+				return;
+			}
+		} finally {
+			pool.unpin(leaf);
+		}
+		// the larger value no longer fits, so the leaf has to split
+		remove(key);
+		insert(key, newValue);
+	}
+	
+	public boolean contains(K key) {
+		Page leaf = findLeaf(key);
+		try {
+			return Collections.binarySearch(leaf.keys, key) >= 0;
+		} finally {
+			pool.unpin(leaf);
+		}
+	}
+	
+	public void clear() {
+		pool.discardAll();
+		try {
+			channel.truncate((long) FIRST_ROOT * pageSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		pageCount = FIRST_ROOT;
+		freeList = NO_PAGE;
+		pool.unpin(pool.allocate(true));
+		root = FIRST_ROOT;
+		elements = 0;
+		height = 0;
+	}
+	
+	public boolean isEmpty() {
+		return elements == 0;
+	}
+	
+	public boolean isBalanced() {
+		// every leaf of a B+tree is at the same depth
+		return true;
+	}
+	
+	public int size() {
+		return elements;
+	}
+	
+	public int height() {
+		return isEmpty() ? -1 : height;
+	}
+	
+	/**
+	 * Writes all modified pages and the file header to the file and forces
+	 * them to the storage device.
+	 * @throws IOException If writing fails.
+	 */
+	public void flush() throws IOException {
+		pool.flushAll();
+		writeHeader();
+		channel.force(false);
+	}
+	
+	/**
+	 * Flushes the tree and closes its file. The tree must not be used
+	 * afterwards.
+	 * @throws IOException If writing or closing fails.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Returns the number of pages read from the file, i.e. buffer pool misses.
+	 * @return The number of page reads.
+	 */
+	public long pageReads() {
+		return pageReads;
+	}
+	
+	/**
+	 * Returns the number of pages written to the file, by eviction or flush.
+	 * @return The number of page writes.
+	 */
+	public long pageWrites() {
+		return pageWrites;
+	}
+	
+	/**
+	 * Returns the number of pages in the file, including the header page and
+	 * free pages awaiting reuse.
+	 * @return The size of the file in pages.
+	 */
+	public int pageCount() {
+		return pageCount;
+	}
+	
+	/**
+	 * Returns the number of pages the buffer pool can cache.
+	 * @return The capacity of the buffer pool in pages.
+	 */
+	public int bufferFrames() {
+		return pool.capacity();
+	}
+	
+	public void print() {
+		if (isEmpty()) {
+			System.out.println("(empty)");
+			return;
+		}
+		
+		// one line per level, one bracketed group of keys per page
+		List<Integer> level = Collections.singletonList(root);
+		while (!level.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			List<Integer> next = new ArrayList<Integer>();
+			for (int id : level) {
+				Page page = pool.pin(id);
+				sb.append(sb.length() == 0 ? "[" : " [");
+				for (int i = 0; i < page.keys.size(); i++) {
+					sb.append(i == 0 ? "" : " ").append(page.keys.get(i));
+				}
+				sb.append("]");
+				if (!page.leaf) {
+					next.addAll(page.children);
+				}
+				pool.unpin(page);
+			}
+			System.out.println(sb.toString());
+			level = next;
+		}
+	}
+	
+	public List<K> keys() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		List<K> keys = new ArrayList<K>(size());
+		for (int id = leftmostLeaf(); id != NO_PAGE; ) {
+			Page leaf = pool.pin(id);
+			keys.addAll(leaf.keys);
+			id = leaf.next;
+			pool.unpin(leaf);
+		}
+		return keys;
+	}
+	
+	public List<V> values() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		List<V> values = new ArrayList<V>(size());
+		for (int id = leftmostLeaf(); id != NO_PAGE; ) {
+			Page leaf = pool.pin(id);
+			values.addAll(leaf.values);
+			id = leaf.next;
+			pool.unpin(leaf);
+		}
+		return values;
+	}
+	
+	public List<Entry<K,V>> entries() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		List<Entry<K,V>> entries = new ArrayList<Entry<K,V>>(size());
+		for (int id = leftmostLeaf(); id != NO_PAGE; ) {
+			Page leaf = pool.pin(id);
+			for (int i = 0; i < leaf.keys.size(); i++) {
+				entries.add(new AbstractMap.SimpleEntry<K,V>(leaf.keys.get(i), leaf.values.get(i)));
+			}
+			id = leaf.next;
+			pool.unpin(leaf);
+		}
+		return entries;
+	}
+	
+	/**
+	 * Returns the keys of each level of pages: the separator keys of the
+	 * internal levels, then the keys of all entries.
+	 */
+	public List<List<K>> levelOrderKeys() {
+		if (isEmpty()) {
+			return null;
+		}
+		
+		List<List<K>> listOfLevels = new ArrayList<List<K>>();
+		List<Integer> level = Collections.singletonList(root);
+		while (!level.isEmpty()) {
+			List<K> keys = new ArrayList<K>();
+			List<Integer> next = new ArrayList<Integer>();
+			for (int id : level) {
+				Page page = pool.pin(id);
+				keys.addAll(page.keys);
+				if (!page.leaf) {
+					next.addAll(page.children);
+				}
+				pool.unpin(page);
+			}
+			listOfLevels.add(keys);
+			level = next;
+		}
+		return listOfLevels;
+	}
+	
+	/**
+	 * Returns the entries of each level of pages. Separator keys of internal
+	 * levels carry no value, so their entries have null values.
+	 */
+	public List<List<Entry<K,V>>> levelOrderEntries() {
+		if (isEmpty()) {
+			return null;
+		}
+		
+		List<List<Entry<K,V>>> listOfLevels = new ArrayList<List<Entry<K,V>>>();
+		List<Integer> level = Collections.singletonList(root);
+		while (!level.isEmpty()) {
+			List<Entry<K,V>> entries = new ArrayList<Entry<K,V>>();
+			List<Integer> next = new ArrayList<Integer>();
+			for (int id : level) {
+				Page page = pool.pin(id);
+				for (int i = 0; i < page.keys.size(); i++) {
+					V value = page.leaf ? page.values.get(i) : null;
+					entries.add(new AbstractMap.SimpleEntry<K,V>(page.keys.get(i), value));
+				}
+				if (!page.leaf) {
+					next.addAll(page.children);
+				}
+				pool.unpin(page);
+			}
+			listOfLevels.add(entries);
+			level = next;
+		}
+		return listOfLevels;
+	}
+	
+	public K lowerKey(K key) {
+		Entry<K,V> entry = lower(root, key);
+		return entry == null ? null : entry.getKey();
+	}
+	
+	public Entry<K,V> lowerEntry(K key) {
+		return lower(root, key);
+	}
+	
+	public K higherKey(K key) {
+		Entry<K,V> entry = higher(root, key);
+		return entry == null ? null : entry.getKey();
+	}
+	
+	public Entry<K,V> higherEntry(K key) {
+		return higher(root, key);
+	}
+	
+	public K minKey() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		return higher(root, null).getKey();
+	}
+	
+	public K maxKey() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		return lower(root, null).getKey();
+	}
+	
+	public Entry<K,V> minEntry() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		return higher(root, null);
+	}
+	
+	public Entry<K,V> maxEntry() {
+		if (isEmpty()) {
+			System.err.println("Error: tree is empty.");
+			return null;
+		}
+		return lower(root, null);
+	}
+	
+	// returns the encoded size of an entry, which must fit a quarter page
+	private int checkEntry(K key, V value) {
+		int bytes = keyCodec.size(key) + valueCodec.size(value);
+		if (bytes > maxEntryBytes) {
+			throw new IllegalArgumentException("Entry of " + bytes + " bytes exceeds the limit of " + maxEntryBytes + " bytes.");
+		}
+		return bytes;
+	}
+	
+	// returns the leaf whose key range holds key, pinned
+	private Page findLeaf(K key) {
+		Page page = pool.pin(root);
+		while (!page.leaf) {
+			Page child = pool.pin(page.children.get(childIndex(page, key)));
+			pool.unpin(page);
+			page = child;
+		}
+		return page;
+	}
+	
+	private int leftmostLeaf() {
+		Page page = pool.pin(root);
+		while (!page.leaf) {
+			Page child = pool.pin(page.children.get(0));
+			pool.unpin(page);
+			page = child;
+		}
+		pool.unpin(page);
+		return page.id;
+	}
+	
+	private int rightmostLeaf(int id) {
+		Page page = pool.pin(id);
+		while (!page.leaf) {
+			Page child = pool.pin(page.children.get(page.children.size() - 1));
+			pool.unpin(page);
+			page = child;
+		}
+		pool.unpin(page);
+		return page.id;
+	}
+	
+	// child i holds the keys in [keys[i - 1], keys[i])
+	private int childIndex(Page page, K key) {
+		int i = Collections.binarySearch(page.keys, key);
+		return i >= 0 ? i + 1 : -(i + 1);
+	}
+	
+	// returns the separator and new right sibling if the page split, else null
+	private Split insert(int id, K key, V value, int bytes) {
+		Page page = pool.pin(id);
+		try {
+			if (page.leaf) {
+				int i = -(Collections.binarySearch(page.keys, key) + 1);
+				page.keys.add(i, key);
+				page.values.add(i, value);
+				page.bytes += bytes;
+			} else {
+				int i = childIndex(page, key);
+				Split split = insert(page.children.get(i), key, value, bytes);
+				if (split == null) {
+					return null;
+				}
+				page.keys.add(i, split.separator);
+				page.children.add(i + 1, split.right);
+				page.bytes += keyCodec.size(split.separator) + 4;
+			}
+			page.dirty = true;
+			return page.bytes > pageSize ? split(page) : null;
+		} finally {
+			pool.unpin(page);
+		}
+	}
+	
+	// moves the upper half of an overfull page's bytes into a new right sibling
+	private Split split(Page page) {
+		Page right = pool.allocate(page.leaf);
+		try {
+			int half = (page.bytes - PAGE_HEADER_BYTES) / 2;
+			int n = page.keys.size();
+			int m = 0;
+			for (int bytes = 0; m < n - 1 && bytes < half; m++) {
+				bytes += keyCodec.size(page.keys.get(m)) + (page.leaf ? valueCodec.size(page.values.get(m)) : 4);
+			}
+			m = Math.max(m, 1);
+			
+			K separator;
+			if (page.leaf) {
+				separator = page.keys.get(m);
+				right.keys.addAll(page.keys.subList(m, n));
+				right.values.addAll(page.values.subList(m, n));
+				page.keys.subList(m, n).clear();
+				page.values.subList(m, n).clear();
+				right.next = page.next;
+				page.next = right.id;
+			} else {
+				// the middle separator moves up instead of into either half
+				separator = page.keys.get(m);
+				right.keys.addAll(page.keys.subList(m + 1, n));
+				right.children.addAll(page.children.subList(m + 1, n + 1));
+				page.keys.subList(m, n).clear();
+				page.children.subList(m + 1, n + 1).clear();
+			}
+			page.bytes = measure(page);
+			right.bytes = measure(right);
+			return new Split(separator, right.id);
+		} finally {
+			pool.unpin(right);
+		}
+	}
+	
+	/*
+	 * Unlinks the empty leaf on key's search path from its parent and from 
+	 * the leaf chain and frees it, then frees any ancestors left without 
+	 * children. left is the nearest subtree to the left of the path, whose 
+	 * rightmost leaf precedes the empty one in the chain. Returns true if 
+	 * page id is left without children.
+	 */
+	private boolean detach(int id, K key, int left) {
+		Page page = pool.pin(id);
+		try {
+			if (page.leaf) {
+				if (left != NO_PAGE) {
+					Page previous = pool.pin(rightmostLeaf(left));
+					previous.next = page.next;
+					previous.dirty = true;
+					pool.unpin(previous);
+				}
+				return true;
+			}
+			
+			int i = childIndex(page, key);
+			int child = page.children.get(i);
+			if (!detach(child, key, i > 0 ? page.children.get(i - 1) : left)) {
+				return false;
+			}
+			// the neighbouring child takes over the detached child's key range
+			page.children.remove(i);
+			if (!page.keys.isEmpty()) {
+				page.keys.remove(i > 0 ? i - 1 : 0);
+			}
+			page.bytes = measure(page);
+			page.dirty = true;
+			pool.free(child);
+			return page.children.isEmpty();
+		} finally {
+			pool.unpin(page);
+		}
+	}
+	
+	// removes root levels with a single child, or resets a root left without any
+	private void shrinkRoot() {
+		Page page = pool.pin(root);
+		while (!page.leaf && page.children.size() <= 1) {
+			int child = page.children.isEmpty() ? NO_PAGE : page.children.get(0);
+			pool.unpin(page);
+			pool.free(page.id);
+			if (child == NO_PAGE) {
+				page = pool.allocate(true);
+				height = 0;
+			} else {
+				page = pool.pin(child);
+				height--;
+			}
+			root = page.id;
+		}
+		pool.unpin(page);
+	}
+	
+	private int measure(Page page) {
+		int bytes = PAGE_HEADER_BYTES;
+		for (int i = 0; i < page.keys.size(); i++) {
+			bytes += keyCodec.size(page.keys.get(i));
+			bytes += page.leaf ? valueCodec.size(page.values.get(i)) : 4;
+		}
+		return page.leaf ? bytes : bytes + 4;
+	}
+	
+	// greatest entry below key in the subtree, or the maximum if key is null
+	private Entry<K,V> lower(int id, K key) {
+		Page page = pool.pin(id);
+		try {
+			if (page.leaf) {
+				int i;
+				if (key == null) {
+					i = page.keys.size() - 1;
+				} else {
+					i = Collections.binarySearch(page.keys, key);
+					i = i >= 0 ? i - 1 : -(i + 1) - 1;
+				}
+				return i < 0 ? null : new AbstractMap.SimpleEntry<K,V>(page.keys.get(i), page.values.get(i));
+			}
+			// key may precede every entry of its leaf, so fall back to the left
+			int start = key == null ? page.children.size() - 1 : childIndex(page, key);
+			for (int c = start; c >= 0; c--) {
+				Entry<K,V> entry = lower(page.children.get(c), key);
+				if (entry != null) {
+					return entry;
+				}
+			}
+			return null;
+		} finally {
+			pool.unpin(page);
+		}
+	}
+	
+	// least entry above key in the subtree, or the minimum if key is null
+	private Entry<K,V> higher(int id, K key) {
+		Page page = pool.pin(id);
+		try {
+			if (page.leaf) {
+				int i;
+				if (key == null) {
+					i = 0;
+				} else {
+					i = Collections.binarySearch(page.keys, key);
+					i = i >= 0 ? i + 1 : -(i + 1);
+				}
+				return i >= page.keys.size() ? null : new AbstractMap.SimpleEntry<K,V>(page.keys.get(i), page.values.get(i));
+			}
+			int start = key == null ? 0 : childIndex(page, key);
+			for (int c = start; c < page.children.size(); c++) {
+				Entry<K,V> entry = higher(page.children.get(c), key);
+				if (entry != null) {
+					return entry;
+				}
+			}
+			return null;
+		} finally {
+			pool.unpin(page);
+		}
+	}
+	
+	private void initialize() throws IOException {
+		pageCount = FIRST_ROOT;
+		freeList = NO_PAGE;
+		pool.unpin(pool.allocate(true));
+		root = FIRST_ROOT;
+		elements = 0;
+		height = 0;
+		flush();
+	}
+	
+	private void readHeader() throws IOException {
+		buffer.clear();
+		buffer.limit(FILE_HEADER_BYTES);
+		readFully((long) HEADER_PAGE * pageSize);
+		buffer.flip();
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("File is not a paged tree.");
+		}
+		int filePageSize = buffer.getInt();
+		if (filePageSize != pageSize) {
+			throw new IOException("File has page size " + filePageSize + ", not " + pageSize + ".");
+		}
+		root = buffer.getInt();
+		pageCount = buffer.getInt();
+		elements = buffer.getInt();
+		height = buffer.getInt();
+		freeList = buffer.getInt();
+	}
+	
+	private void writeHeader() throws IOException {
+		buffer.clear();
+		buffer.putInt(MAGIC);
+		buffer.putInt(pageSize);
+		buffer.putInt(root);
+		buffer.putInt(pageCount);
+		buffer.putInt(elements);
+		buffer.putInt(height);
+		buffer.putInt(freeList);
+		buffer.flip();
+		writeFully((long) HEADER_PAGE * pageSize);
+	}
+	
+	private Page readPage(int id) throws IOException {
+		buffer.clear();
+		readFully((long) id * pageSize);
+		buffer.flip();
+		pageReads++;
+		
+		boolean leaf = buffer.get() == LEAF;
+		Page page = new Page(id, leaf);
+		int n = buffer.getInt();
+		page.next = buffer.getInt();
+		if (leaf) {
+			for (int i = 0; i < n; i++) {
+				page.keys.add(keyCodec.read(buffer));
+				page.values.add(valueCodec.read(buffer));
+			}
+		} else {
+			page.children.add(buffer.getInt());
+			for (int i = 0; i < n; i++) {
+				page.keys.add(keyCodec.read(buffer));
+				page.children.add(buffer.getInt());
+			}
+		}
+		page.bytes = buffer.position();
+		return page;
+	}
+	
+	private void writePage(Page page) throws IOException {
+		buffer.clear();
+		buffer.put(page.leaf ? LEAF : INTERNAL);
+		buffer.putInt(page.keys.size());
+		buffer.putInt(page.next);
+		if (page.leaf) {
+			for (int i = 0; i < page.keys.size(); i++) {
+				keyCodec.write(page.keys.get(i), buffer);
+				valueCodec.write(page.values.get(i), buffer);
+			}
+		} else {
+			buffer.putInt(page.children.get(0));
+			for (int i = 0; i < page.keys.size(); i++) {
+				keyCodec.write(page.keys.get(i), buffer);
+				buffer.putInt(page.children.get(i + 1));
+			}
+		}
+		// pages are written whole so the file grows in page-sized steps
+		buffer.position(0);
+		buffer.limit(pageSize);
+		writeFully((long) page.id * pageSize);
+		page.dirty = false;
+		pageWrites++;
+	}
+	
+	private void readFully(long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of file at " + (position + buffer.position()) + ".");
+			}
+		}
+	}
+	
+	private void writeFully(long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+	
+	private class Page {
+		private final int id;
+		private final boolean leaf;
+		private final List<K> keys;
+		// leaf pages only
+		private final List<V> values;
+		private int next;
+		// internal pages only, one more than keys
+		private final List<Integer> children;
+		// encoded size of the page, which may exceed pageSize only until it splits
+		private int bytes;
+		private boolean dirty;
+		private int pins;
+		private int usage;
+		// index of the buffer pool frame holding the page
+		private int frame;
+		
+		private Page(int id, boolean leaf) {
+			this.id = id;
+			this.leaf = leaf;
+			keys = new ArrayList<K>();
+			values = leaf ? new ArrayList<V>() : null;
+			children = leaf ? null : new ArrayList<Integer>();
+			next = NO_PAGE;
+			bytes = PAGE_HEADER_BYTES;
+		}
+	}
+	
+	private class Split {
+		private final K separator;
+		private final int right;
+		
+		private Split(K separator, int right) {
+			this.separator = separator;
+			this.right = right;
+		}
+	}
+	
+	/**
+	 * Caches decoded pages in a fixed number of frames. A page is pinned
+	 * while in use and is never evicted while pinned. Unpinned pages are
+	 * evicted in CLOCK order: the hand skips a page and decrements its usage
+	 * until the usage runs out, and every access resets the usage.
+	 */
+	private class BufferPool {
+		private final List<Page> frames;
+		private final Map<Integer,Page> pages;
+		private final int capacity;
+		private int hand;
+		
+		private BufferPool(int capacity) {
+			this.capacity = capacity;
+			frames = new ArrayList<Page>(capacity);
+			pages = new HashMap<Integer,Page>(2 * capacity);
+			hand = 0;
+		}
+		
+		private int capacity() {
+			return capacity;
+		}
+		
+		private Page pin(int id) {
+			Page page = pages.get(id);
+			if (page == null) {
+				try {
+					page = readPage(id);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				place(page);
+			}
+			page.pins++;
+			page.usage = page.leaf ? LEAF_USAGE : INTERNAL_USAGE;
+			return page;
+		}
+		
+		private void unpin(Page page) {
+			page.pins--;
+		}
+		
+		// reuses a free page or appends a new one to the file, empty and pinned
+		private Page allocate(boolean leaf) {
+			int id;
+			if (freeList != NO_PAGE) {
+				Page free = pin(freeList);
+				id = free.id;
+				freeList = free.next;
+				unpin(free);
+				discard(free);
+			} else {
+				id = pageCount++;
+			}
+			Page page = new Page(id, leaf);
+			page.dirty = true;
+			place(page);
+			page.pins++;
+			page.usage = leaf ? LEAF_USAGE : INTERNAL_USAGE;
+			return page;
+		}
+		
+		// replaces an unpinned page by an empty one at the head of the free list
+		private void free(int id) {
+			Page old = pages.get(id);
+			if (old != null) {
+				discard(old);
+			}
+			Page page = new Page(id, true);
+			page.next = freeList;
+			page.dirty = true;
+			place(page);
+			freeList = id;
+		}
+		
+		// drops a cached page without writing it back
+		private void discard(Page page) {
+			Page last = frames.remove(frames.size() - 1);
+			if (last != page) {
+				frames.set(page.frame, last);
+				last.frame = page.frame;
+			}
+			pages.remove(page.id);
+		}
+		
+		private void place(Page page) {
+			if (frames.size() < capacity) {
+				page.frame = frames.size();
+				frames.add(page);
+			} else {
+				int slot = victim();
+				Page old = frames.get(slot);
+				if (old.dirty) {
+					try {
+						writePage(old);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				pages.remove(old.id);
+				page.frame = slot;
+				frames.set(slot, page);
+			}
+			pages.put(page.id, page);
+		}
+		
+		private int victim() {
+			// a full sweep lowers every usage by one, so this many steps suffice
+			for (int steps = 0; steps <= capacity * (INTERNAL_USAGE + 1); steps++) {
+				int slot = hand;
+				hand = (hand + 1) % capacity;
+				Page page = frames.get(slot);
+				if (page.pins > 0) {
+					continue;
+				} else if (page.usage > 0) {
+					page.usage--;
+					continue;
+				}
+				return slot;
+			}
+			throw new IllegalStateException("Every page in the buffer pool is pinned.");
+		}
+		
+		private void flushAll() throws IOException {
+			for (Page page : frames) {
+				if (page.dirty) {
+					writePage(page);
+				}
+			}
+		}
+		
+		// drops every cached page without writing it back
+		private void discardAll() {
+			frames.clear();
+			pages.clear();
+			hand = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,21 @@
+package trees;
+
+/**
+ * Receives the entries taken out of a tree by a bulk removal such as
+ * {@link AVLTree#removeBelow}, e.g. to archive them. Entries are delivered
+ * one at a time in ascending key order as they are detached, so no list of
+ * the removed entries is built. The listener must not modify the tree.
+ *
+ * @param <K> A comparable key type.
+ * @param <V> A value type.
+ */
+public interface RemovalListener<K extends Comparable<? super K>, V> {
+	
+	/**
+	 * Called for each removed entry.
+	 * @param key The key of the removed entry.
+	 * @param value The value of the removed entry.
+	 */
+	public void removed(K key, V value);
+	
+}
@@ -0,0 +1,58 @@
+package trees;
+
+/**
+ * Estimates the heap memory retained by a key or value, for the memory
+ * accounting of {@link AVLTree}. An estimate covers the object itself and
+ * anything it alone refers to, but not the reference to it, which is part of
+ * the node. Objects shared between entries (cached boxed numbers, interned
+ * strings, enum constants) are counted once per entry unless the estimator
+ * returns 0 for them. Estimators for common types are provided as constants;
+ * their sizes assume the layout described in {@link MemoryFootprint}.
+ *
+ * @param <T> The type of the measured objects.
+ */
+public interface SizeEstimator<T> {
+	
+	/**
+	 * Estimates the bytes retained by an object.
+	 * @param object The object to measure; never null.
+	 * @return The estimated size of object in bytes.
+	 */
+	public long sizeOf(T object);
+	
+	// for objects that are shared or accounted elsewhere
+	public static final SizeEstimator<Object> ZERO = new SizeEstimator<Object>() {
+		public long sizeOf(Object object) {
+			return 0;
+		}
+	};
+	
+	public static final SizeEstimator<Integer> INTEGER = new SizeEstimator<Integer>() {
+		public long sizeOf(Integer object) {
+			return MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + 4);
+		}
+	};
+	
+	public static final SizeEstimator<Long> LONG = new SizeEstimator<Long>() {
+		public long sizeOf(Long object) {
+			return MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + 8);
+		}
+	};
+	
+	// a compact string: one byte per char if all are Latin-1, else two
+	public static final SizeEstimator<String> STRING = new SizeEstimator<String>() {
+		public long sizeOf(String object) {
+			int bytesPerChar = 1;
+			for (int i = 0; i < object.length(); i++) {
+				if (object.charAt(i) > 0xFF) {
+					bytesPerChar = 2;
+					break;
+				}
+			}
+			// value array, hash and coder fields
+			long string = MemoryFootprint.align(MemoryFootprint.OBJECT_HEADER + MemoryFootprint.REFERENCE + 4 + 2);
+			return string + MemoryFootprint.arrayBytes(object.length(), bytesPerChar);
+		}
+	};
+	
+}
@@ -0,0 +1,674 @@
+package trees;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A YCSB-style load generator for end-to-end benchmarks of any
+ * {@link BinarySearchTree} with integer keys. The driver loads a number of
+ * records, then runs a mix of finds, inserts, removes and range scans whose
+ * keys follow a {@link KeyDistribution}, or replays a recorded trace of
+ * operations, and reports the throughput and latency percentiles of each
+ * kind of operation.
+ *
+ * Operations are spread over a number of threads. With a target rate the
+ * driver is open-loop: operation i is scheduled at start + i / rate no matter
+ * how long earlier operations took, and its latency is measured from that
+ * scheduled time. A stall therefore shows up in the latency of every
+ * operation that should have run during it, rather than silently lowering
+ * the request rate (coordinated omission). Without a target rate every
+ * thread issues its next operation as soon as the last one completes.
+ *
+ * Trees that are not safe for concurrent use are accessed under a lock on
+ * the tree; pass concurrent = true for trees like {@link BufferedTree} that
+ * synchronize themselves. Removes, and inserts of keys that may exist, check
+ * contains() first so that trees which reject missing or duplicate keys are
+ * not asked to; the check is part of the measured operation.
+ *
+ * Usage: java trees.WorkloadDriver [-tree avl|wavl|red_black|buffered]
+ * [-records n] [-operations n] [-warmup n] [-threads n] [-rate ops/s]
+ * [-distribution uniform|zipfian|latest|sequential]
+ * [-mix find,insert,remove,scan] [-scan maxLength] [-seed n]
+ * [-record traceFile] [-replay traceFile]
+ */
+public class WorkloadDriver {
+	
+	public static final int DEFAULT_RECORDS = 100000;
+	public static final int DEFAULT_OPERATIONS = 1000000;
+	public static final int DEFAULT_SCAN_LENGTH = 100;
+	public static final long DEFAULT_SEED = 42;
+	
+	// lets threads start before the first operation is due
+	private static final long START_DELAY_NANOS = 10000000L;
+	// waits shorter than this spin instead of parking
+	private static final long SPIN_NANOS = 50000L;
+	
+	/**
+	 * The kinds of operation the driver issues.
+	 */
+	public enum OperationType {
+		FIND, INSERT, REMOVE, SCAN
+	}
+	
+	/**
+	 * A single operation of a workload or trace. In a trace file it is a line
+	 * holding the type and key, and for a scan the number of entries to read,
+	 * separated by whitespace; e.g. "SCAN 42 100".
+	 */
+	public static final class Operation {
+		private final OperationType type;
+		private final int key;
+		private final int length;
+		
+		public Operation(OperationType type, int key, int length) {
+			this.type = type;
+			this.key = key;
+			this.length = length;
+		}
+		
+		public OperationType getType() {
+			return type;
+		}
+		
+		public int getKey() {
+			return key;
+		}
+		
+		public int getLength() {
+			return length;
+		}
+		
+		@Override
+		public String toString() {
+			if (type == OperationType.SCAN) {
+				return type + " " + key + " " + length;
+			}
+			return type + " " + key;
+		}
+	}
+	
+	/**
+	 * The outcome of a run: the elapsed time and a latency histogram, in
+	 * nanoseconds, per operation type.
+	 */
+	public static final class Result {
+		private final LatencyHistogram[] histograms;
+		private final long elapsedNanos;
+		
+		private Result(LatencyHistogram[] histograms, long elapsedNanos) {
+			this.histograms = histograms;
+			this.elapsedNanos = elapsedNanos;
+		}
+		
+		public LatencyHistogram histogram(OperationType type) {
+			return histograms[type.ordinal()];
+		}
+		
+		public long operations() {
+			long operations = 0;
+			for (LatencyHistogram histogram : histograms) {
+				operations += histogram.count();
+			}
+			return operations;
+		}
+		
+		public long elapsedNanos() {
+			return elapsedNanos;
+		}
+		
+		/**
+		 * Returns the achieved throughput of the run.
+		 * @return Completed operations per second.
+		 */
+		public double throughput() {
+			return elapsedNanos == 0 ? 0 : operations() * 1e9 / elapsedNanos;
+		}
+		
+		/**
+		 * Prints the throughput and a table of latency percentiles in
+		 * microseconds per operation type.
+		 * @param out The stream to print to.
+		 */
+		public void print(PrintStream out) {
+			out.printf("Throughput: %.1f ops/s (%d operations in %.2f s)%n",
+					throughput(), operations(), elapsedNanos / 1e9);
+			out.printf("%-8s %10s %9s %9s %9s %9s %9s %9s %9s   (us)%n",
+					"op", "count", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+			for (OperationType type : OperationType.values()) {
+				LatencyHistogram histogram = histogram(type);
+				if (histogram.count() == 0) {
+					continue;
+				}
+				out.printf("%-8s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+						type, histogram.count(), histogram.mean() / 1e3,
+						histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3,
+						histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+						histogram.percentile(99.99) / 1e3, histogram.max() / 1e3);
+			}
+		}
+	}
+	
+	private final BinarySearchTree<Integer, Integer> tree;
+	private final boolean concurrent;
+	
+	private double[] mix;
+	private KeyDistribution distribution;
+	private int threads;
+	private double targetRate;
+	private int scanLength;
+	private long seed;
+	
+	private int records;
+	private ZipfianGenerator zipfian;
+	// the next key to insert; keys below it have been loaded or inserted
+	private final AtomicInteger nextKey;
+	private final AtomicLong sequence;
+	
+	// keeps the JIT from discarding lookups
+	private static volatile long sink;
+	
+	/**
+	 * Creates a driver for the given tree, with a read-mostly default mix of
+	 * 95% finds and 5% inserts over uniformly distributed keys on one thread.
+	 * @param tree The tree to exercise.
+	 * @param concurrent true if the tree is safe for concurrent use; false to
+	 * serialize all operations on it.
+	 */
+	public WorkloadDriver(BinarySearchTree<Integer, Integer> tree, boolean concurrent) {
+		this.tree = tree;
+		this.concurrent = concurrent;
+		mix = new double[] { 0.95, 0.05, 0, 0 };
+		distribution = KeyDistribution.UNIFORM;
+		threads = 1;
+		targetRate = 0;
+		scanLength = DEFAULT_SCAN_LENGTH;
+		seed = DEFAULT_SEED;
+		records = 0;
+		zipfian = null;
+		nextKey = new AtomicInteger(0);
+		sequence = new AtomicLong(0);
+	}
+	
+	/**
+	 * Sets the proportions of each operation type. They are relative weights
+	 * and need not add up to 1.
+	 */
+	public void setMix(double find, double insert, double remove, double scan) {
+		double total = find + insert + remove + scan;
+		if (find < 0 || insert < 0 || remove < 0 || scan < 0 || total <= 0) {
+			throw new IllegalArgumentException("Operation mix must be non-negative and not all zero.");
+		}
+		mix = new double[] { find / total, insert / total, remove / total, scan / total };
+	}
+	
+	public void setDistribution(KeyDistribution distribution) {
+		this.distribution = distribution;
+	}
+	
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be positive.");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Sets the rate at which operations are scheduled across all threads.
+	 * @param targetRate Operations per second, or 0 to run as fast as possible.
+	 */
+	public void setTargetRate(double targetRate) {
+		this.targetRate = Math.max(0, targetRate);
+	}
+	
+	/**
+	 * Sets the maximum number of entries a scan reads. Each scan reads a
+	 * uniformly chosen number of entries between 1 and this maximum.
+	 */
+	public void setScanLength(int scanLength) {
+		this.scanLength = Math.max(1, scanLength);
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	
+	/**
+	 * Loads keys 0 to records - 1 into the tree in random order, each with
+	 * itself as the value. The load is not measured. Generated inserts use
+	 * keys from records upward.
+	 * @param records The number of records to load.
+	 */
+	public void load(int records) {
+		List<Integer> order = new ArrayList<Integer>(records);
+		for (int i = 0; i < records; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(seed));
+		for (int key : order) {
+			tree.insert(key, key);
+		}
+		this.records = records;
+		nextKey.set(records);
+		zipfian = new ZipfianGenerator(Math.max(1, records));
+	}
+	
+	/**
+	 * Generates operations from the configured mix and key distribution
+	 * without running them, e.g. to record a trace. Generation tracks the
+	 * keys that generated inserts would add, so the trace is only valid for
+	 * a tree loaded the same way as this one.
+	 * @param operations The number of operations to generate.
+	 * @return The generated operations in order.
+	 */
+	public List<Operation> generate(int operations) {
+		ensureLoaded();
+		Random random = new Random(seed);
+		List<Operation> generated = new ArrayList<Operation>(operations);
+		for (int i = 0; i < operations; i++) {
+			generated.add(nextOperation(random));
+		}
+		return generated;
+	}
+	
+	/**
+	 * Runs operations generated from the configured mix and key distribution.
+	 * @param operations The total number of operations over all threads.
+	 * @return The throughput and latencies of the run.
+	 */
+	public Result run(int operations) {
+		ensureLoaded();
+		return execute(operations, null);
+	}
+	
+	/**
+	 * Replays a recorded list of operations, honouring the configured thread
+	 * count and target rate. Operations are issued in list order, though with
+	 * several threads neighbouring operations may complete out of order.
+	 * @param trace The operations to replay.
+	 * @return The throughput and latencies of the replay.
+	 */
+	public Result replay(List<Operation> trace) {
+		return execute(trace.size(), trace);
+	}
+	
+	/**
+	 * Reads a trace of operations, one per line. Blank lines and lines
+	 * starting with # are ignored.
+	 * @param file The trace file to read.
+	 * @return The operations in the file, in order.
+	 * @throws IOException if the file cannot be read or holds a malformed line.
+	 */
+	public static List<Operation> readTrace(File file) throws IOException {
+		List<Operation> trace = new ArrayList<Operation>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					trace.add(parseOperation(line));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ":" + lineNumber + ": malformed operation \"" + line + "\".", e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+	
+	/**
+	 * Writes operations to a trace file that readTrace() can read back.
+	 * @param trace The operations to write.
+	 * @param file The trace file to write.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void writeTrace(List<Operation> trace, File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (Operation operation : trace) {
+				writer.write(operation.toString());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		String treeName = "avl";
+		int records = DEFAULT_RECORDS;
+		int operations = DEFAULT_OPERATIONS;
+		int warmup = 0;
+		String recordFile = null;
+		String replayFile = null;
+		List<String[]> settings = new ArrayList<String[]>();
+		
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String name = args[i];
+			String value = args[i + 1];
+			if (name.equals("-tree")) {
+				treeName = value.toLowerCase();
+			} else if (name.equals("-records")) {
+				records = Integer.parseInt(value);
+			} else if (name.equals("-operations")) {
+				operations = Integer.parseInt(value);
+			} else if (name.equals("-warmup")) {
+				warmup = Integer.parseInt(value);
+			} else if (name.equals("-record")) {
+				recordFile = value;
+			} else if (name.equals("-replay")) {
+				replayFile = value;
+			} else {
+				settings.add(new String[] { name, value });
+			}
+		}
+		if (args.length % 2 != 0) {
+			throw new IllegalArgumentException("Missing value for option " + args[args.length - 1] + ".");
+		}
+		
+		BinarySearchTree<Integer, Integer> tree;
+		boolean concurrent = false;
+		if (treeName.equals("buffered")) {
+			tree = new BufferedTree<Integer, Integer>();
+			concurrent = true;
+		} else {
+			tree = new AVLTree<Integer, Integer>(BalancePolicy.valueOf(treeName.toUpperCase()));
+		}
+		
+		WorkloadDriver driver = new WorkloadDriver(tree, concurrent);
+		for (String[] setting : settings) {
+			driver.configure(setting[0], setting[1]);
+		}
+		
+		System.out.println("Loading " + records + " records into " + treeName + " tree...");
+		driver.load(records);
+		
+		List<Operation> trace = null;
+		if (replayFile != null) {
+			trace = readTrace(new File(replayFile));
+		} else if (recordFile != null) {
+			trace = driver.generate(warmup + operations);
+			writeTrace(trace, new File(recordFile));
+			System.out.println("Recorded " + trace.size() + " operations to " + recordFile);
+		}
+		
+		if (warmup > 0) {
+			System.out.println("Warming up with " + warmup + " operations...");
+			if (trace != null) {
+				driver.replay(trace.subList(0, Math.min(warmup, trace.size())));
+			} else {
+				driver.run(warmup);
+			}
+		}
+		
+		Result result;
+		if (trace != null) {
+			int from = Math.min(warmup, trace.size());
+			System.out.println("Replaying " + (trace.size() - from) + " operations...");
+			result = driver.replay(trace.subList(from, trace.size()));
+		} else {
+			System.out.println("Running " + operations + " operations...");
+			result = driver.run(operations);
+		}
+		result.print(System.out);
+		
+		if (tree instanceof BufferedTree) {
+			((BufferedTree<Integer, Integer>) tree).close();
+		}
+	}
+	
+	/* Private Methods */
+	
+	private void configure(String name, String value) {
+		if (name.equals("-threads")) {
+			setThreads(Integer.parseInt(value));
+		} else if (name.equals("-rate")) {
+			setTargetRate(Double.parseDouble(value));
+		} else if (name.equals("-distribution")) {
+			setDistribution(KeyDistribution.valueOf(value.toUpperCase()));
+		} else if (name.equals("-scan")) {
+			setScanLength(Integer.parseInt(value));
+		} else if (name.equals("-seed")) {
+			setSeed(Long.parseLong(value));
+		} else if (name.equals("-mix")) {
+			String[] parts = value.split(",");
+			if (parts.length != 4) {
+				throw new IllegalArgumentException("Expected -mix find,insert,remove,scan but got " + value + ".");
+			}
+			setMix(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+					Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+		} else {
+			throw new IllegalArgumentException("Unknown option " + name + ".");
+		}
+	}
+	
+	private void ensureLoaded() {
+		if (zipfian == null) {
+			load(0);
+		}
+	}
+	
+	/*
+	 * Runs the operations of the trace, or generated ones if it is null, on
+	 * the configured number of threads. Threads claim operation indexes from
+	 * a shared counter, and with a target rate wait until each operation's
+	 * scheduled time before issuing it.
+	 */
+	private Result execute(final int operations, final List<Operation> trace) {
+		final LatencyHistogram[][] histograms = new LatencyHistogram[threads][OperationType.values().length];
+		final AtomicLong issued = new AtomicLong(0);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final double interval = targetRate > 0 ? 1e9 / targetRate : 0;
+		final long start = System.nanoTime() + START_DELAY_NANOS;
+		
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int t = 0; t < threads; t++) {
+			final LatencyHistogram[] local = histograms[t];
+			for (int i = 0; i < local.length; i++) {
+				local[i] = new LatencyHistogram();
+			}
+			final Random random = new Random(seed + t + 1);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						waitUntil(start);
+						long index;
+						while ((index = issued.getAndIncrement()) < operations && failure.get() == null) {
+							Operation operation = trace != null ? trace.get((int) index) : nextOperation(random);
+							long scheduled;
+							if (interval > 0) {
+								scheduled = start + (long) (index * interval);
+								waitUntil(scheduled);
+							} else {
+								scheduled = System.nanoTime();
+							}
+							perform(operation);
+							local[operation.getType().ordinal()].record(System.nanoTime() - scheduled);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "WorkloadDriver-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for workers.", e);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (failure.get() != null) {
+			throw new IllegalStateException("Workload operation failed.", failure.get());
+		}
+		
+		LatencyHistogram[] merged = new LatencyHistogram[OperationType.values().length];
+		for (int i = 0; i < merged.length; i++) {
+			merged[i] = new LatencyHistogram();
+			for (int t = 0; t < threads; t++) {
+				merged[i].add(histograms[t][i]);
+			}
+		}
+		return new Result(merged, elapsed);
+	}
+	
+	private Operation nextOperation(Random random) {
+		double choice = random.nextDouble();
+		OperationType type = OperationType.SCAN;
+		for (OperationType candidate : OperationType.values()) {
+			if (choice < mix[candidate.ordinal()]) {
+				type = candidate;
+				break;
+			}
+			choice -= mix[candidate.ordinal()];
+		}
+		
+		if (type == OperationType.INSERT) {
+			return new Operation(type, nextKey.getAndIncrement(), 0);
+		}
+		int length = type == OperationType.SCAN ? 1 + random.nextInt(scanLength) : 0;
+		return new Operation(type, chooseKey(random), length);
+	}
+	
+	private int chooseKey(Random random) {
+		int keys = Math.max(1, nextKey.get());
+		switch (distribution) {
+		case ZIPFIAN:
+			// scatter the popular ranks over the loaded keys
+			int rank = (int) zipfian.next(random);
+			return BloomFilter.index((int) BloomFilter.hash(rank), Math.max(1, records));
+		case LATEST:
+			return Math.max(0, keys - 1 - (int) zipfian.next(random));
+		case SEQUENTIAL:
+			return (int) (sequence.getAndIncrement() % keys);
+		default:
+			return random.nextInt(keys);
+		}
+	}
+	
+	private void perform(Operation operation) {
+		if (concurrent) {
+			apply(operation);
+		} else {
+			synchronized (tree) {
+				apply(operation);
+			}
+		}
+	}
+	
+	private void apply(Operation operation) {
+		int key = operation.getKey();
+		switch (operation.getType()) {
+		case FIND:
+			Integer value = tree.find(key);
+			if (value != null) {
+				sink += value;
+			}
+			break;
+		case INSERT:
+			if (!tree.contains(key)) {
+				tree.insert(key, key);
+			}
+			break;
+		case REMOVE:
+			if (tree.contains(key)) {
+				tree.remove(key);
+			}
+			break;
+		case SCAN:
+			Entry<Integer, Integer> entry = tree.higherEntry(key - 1);
+			for (int i = 0; i < operation.getLength() && entry != null; i++) {
+				sink += entry.getValue();
+				entry = tree.higherEntry(entry.getKey());
+			}
+			break;
+		}
+	}
+	
+	private static void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			}
+		}
+	}
+	
+	private static Operation parseOperation(String line) {
+		String[] parts = line.split("\\s+");
+		OperationType type = OperationType.valueOf(parts[0].toUpperCase());
+		int expected = type == OperationType.SCAN ? 3 : 2;
+		if (parts.length != expected) {
+			throw new IllegalArgumentException("Expected " + expected + " fields.");
+		}
+		int length = type == OperationType.SCAN ? Integer.parseInt(parts[2]) : 0;
+		return new Operation(type, Integer.parseInt(parts[1]), length);
+	}
+	
+	/*
+	 * Draws ranks 0 to items - 1 with probability proportional to
+	 * 1 / (rank + 1)^THETA, in constant time per draw after an O(items)
+	 * setup (Gray et al., "Quickly Generating Billion-Record Synthetic
+	 * Databases"). Rank 0 is the most popular.
+	 */
+	private static class ZipfianGenerator {
+		private static final double THETA = 0.99;
+		
+		private final long items;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+		private final double halfPowTheta;
+		
+		public ZipfianGenerator(long items) {
+			this.items = items;
+			double sum = 0;
+			for (long i = 1; i <= items; i++) {
+				sum += 1 / Math.pow(i, THETA);
+			}
+			zetan = sum;
+			halfPowTheta = Math.pow(0.5, THETA);
+			double zeta2 = 1 + halfPowTheta;
+			alpha = 1 / (1 - THETA);
+			eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta2 / zetan);
+		}
+		
+		public long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			} else if (uz < 1 + halfPowTheta) {
+				return Math.min(1, items - 1);
+			}
+			long rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+			return Math.min(rank, items - 1);
+		}
+	}
+	
+}